@@ -4,6 +4,9 @@ import audio.util.SystemTimeManager;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -17,8 +20,11 @@ import java.util.logging.Logger;
  *
  */
 public abstract class AudioEngine {
+	private static final int ASYNC_THREADS = 2;
+
 	private String name;
 	protected Logger logger;
+	private ScheduledExecutorService executor;
 
 	/**
 	 * Creates a new AudioEngine and initializes it.
@@ -100,6 +106,33 @@ public abstract class AudioEngine {
 		logger = log;
 	}
 
+	/**
+	 * Returns the executor that players use for asynchronous operations like seeking and delayed starts.
+	 * It has a fixed number of daemon threads so that many players do not create many threads.
+	 * Players should schedule delayed actions instead of blocking a thread.
+	 *
+	 * @return the shared executor of this engine
+	 */
+	public synchronized ScheduledExecutorService getExecutor() {
+		if(executor == null) {
+			AtomicInteger count = new AtomicInteger();
+			executor = Executors.newScheduledThreadPool(ASYNC_THREADS, r -> {
+				Thread thread = new Thread(r, name + " async " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		return executor;
+	}
+
+	/**
+	 * Shuts down the executor returned by {@link #getExecutor()}. Implementations call this from {@link #dispose()}.
+	 */
+	protected synchronized void shutdownExecutor() {
+		if(executor != null) executor.shutdown();
+		executor = null;
+	}
+
 	/**
 	 * Releases all resources associated with the <code>AudioEngine</code>. If
 	 * there are sill active players, they will also be destroyed.
@@ -139,7 +172,7 @@ public abstract class AudioEngine {
 					}
 				}
 			});
-			stm.start(50);
+			stm.start(250);  // audio may play for up to one period after wake-up before players are paused
 		} else if (!pauseOnStandby && stm != null) {
 			stm.dispose();
 			stm = null;
@@ -0,0 +1,46 @@
+package audio;
+
+
+/**
+ * Describes how far the output of a player deviates from the timeline
+ * given by {@link Player#startAt(long)} and how much has been corrected.
+ */
+public class DriftStatistics {
+	private double offsetMillis;
+	private long insertedFrames;
+	private long droppedFrames;
+
+
+	public DriftStatistics(double offsetMillis, long insertedFrames, long droppedFrames) {
+		this.offsetMillis = offsetMillis;
+		this.insertedFrames = insertedFrames;
+		this.droppedFrames = droppedFrames;
+	}
+
+
+	/**
+	 * @return the remaining deviation in milliseconds, positive if the output is ahead of the timeline
+	 */
+	public double getOffsetMillis() {
+		return offsetMillis;
+	}
+
+	/**
+	 * @return number of frames that were repeated to delay the output
+	 */
+	public long getInsertedFrames() {
+		return insertedFrames;
+	}
+
+	/**
+	 * @return number of frames that were skipped to advance the output
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.2f ms, %d inserted, %d dropped", offsetMillis, insertedFrames, droppedFrames);
+	}
+}
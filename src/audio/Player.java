@@ -274,6 +274,20 @@ public interface Player {
      * @throws IllegalStateException if the player is not active
      */
 	void start() throws IllegalStateException;
+	/**
+	 * Starts playing this player's media so that the current position is heard at the given time.
+	 * If the time lies in the future, playback is preceded by silence.
+	 * If it lies in the past, the media is skipped ahead by the elapsed time.
+	 * @param systemTimeMillis start time as returned by {@link System#currentTimeMillis()}
+	 * @throws IllegalStateException if the player is not active
+	 */
+	void startAt(long systemTimeMillis) throws IllegalStateException;
+	/**
+	 * Returns how far the output deviates from the time passed to {@link #startAt(long)}.
+	 * Players that support drift correction keep this deviation small during long playback.
+	 * @return the drift statistics or <code>null</code> if playback was not scheduled or drift is not measured
+	 */
+	DriftStatistics getDriftStatistics();
 	void pause();
 	boolean isPlaying();
 
@@ -70,6 +70,7 @@ public class JavaFXAudioEngine extends AudioEngine
 		for(Player player : players) {
 			player.dispose();
 		}
+		shutdownExecutor();
 	}
 
 	@Override
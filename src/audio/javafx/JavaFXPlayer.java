@@ -13,6 +13,7 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class JavaFXPlayer extends AbstractPlayer {
@@ -217,6 +218,28 @@ public class JavaFXPlayer extends AbstractPlayer {
 		fireStarted(position, PlayerEvent.USER_COMMAND);
 	}
 
+	/**
+	 * JavaFX does not expose the output line, so the start time is only met approximately.
+	 */
+	@Override
+	public void startAt(long systemTimeMillis) throws IllegalStateException {
+		if(fxPlayer == null) throw new IllegalStateException("player must be active to start");
+		long delay = systemTimeMillis - System.currentTimeMillis();
+		if(delay <= 0) {
+			if(delay < 0) setPositionAsync(getPosition() - delay / 1000.0, null);
+			start();
+			return;
+		}
+		engine.getExecutor().schedule(() -> {
+			if(fxPlayer != null) start();
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public DriftStatistics getDriftStatistics() {
+		return null;
+	}
+
 	@Override
 	public void pause() {
 		fxPlayer.pause();
@@ -292,20 +315,13 @@ public class JavaFXPlayer extends AbstractPlayer {
 		if(fxPlayer.getStatus() == Status.STOPPED) fxPlayer.pause();
 
 		// Sometimes the ChangeListener does not get notified
+		ScheduledFuture<?> poll = null;
 		if(fxPlayer.getStatus() == Status.READY) {
-			long startTime = System.currentTimeMillis();
-			new Thread(() -> {
-				while(true) {
-					try {
-						Thread.sleep(50);
-					} catch(InterruptedException exc){ return; }
-					if(Math.abs(position - fxPlayer.getCurrentTime().toSeconds()) < 0.1){
-						posChangedLatch.countDown();
-						return;
-					}
-					if(System.currentTimeMillis()-startTime > timeout*1000) return;
+			poll = engine.getExecutor().scheduleWithFixedDelay(() -> {
+				if(Math.abs(position - fxPlayer.getCurrentTime().toSeconds()) < 0.1){
+					posChangedLatch.countDown();
 				}
-			}).start();
+			}, 50, 50, TimeUnit.MILLISECONDS);
 		}
 
 		fxPlayer.seek(Duration.seconds(position));
@@ -313,6 +329,7 @@ public class JavaFXPlayer extends AbstractPlayer {
 		boolean positionSet = posChangedLatch.await((long) (timeout*1000), TimeUnit.MILLISECONDS);
 
 		fxPlayer.currentTimeProperty().removeListener(listener);
+		if(poll != null) poll.cancel(false);
 		if(!positionSet) {
 			double dif = Math.abs(position - fxPlayer.getCurrentTime().toSeconds());
 			if(dif > 0.1) throw new InterruptedException("timeout, time="+fxPlayer.getCurrentTime().toSeconds()+", requested "+position);
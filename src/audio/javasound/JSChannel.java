@@ -1,5 +1,6 @@
 package audio.javasound;
 
+import audio.DriftStatistics;
 import audio.javasound.lib.JavaSoundMixer;
 import audio.javasound.lib.VirtualChannel;
 
@@ -57,6 +58,20 @@ public class JSChannel
 		vChannel.start();
 	}
 
+	/**
+	 * Starts the channel so that the current position is heard at the given time.
+	 * The line is emptied first so that the pre-roll only has to account for silence.
+	 */
+	public void startAt(long systemTimeMillis) {
+		if(vChannel.isRunning()) vChannel.stop();
+		if(vChannel.getReadFrames() > 0) seek(getPositionMillis());
+		vChannel.startAt(systemTimeMillis);
+	}
+
+	public DriftStatistics getDriftStatistics() {
+		return vChannel.getDriftStatistics();
+	}
+
 	public boolean isRunning() {
 		return vChannel.isRunning();
 	}
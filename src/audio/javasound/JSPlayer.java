@@ -157,6 +157,20 @@ public class JSPlayer extends AbstractPlayer
 		fireStarted(offlinePositionMillis, PlayerEvent.USER_COMMAND);
 	}
 
+	@Override
+	public void startAt(long systemTimeMillis) throws IllegalStateException {
+		if(!isActive()) throw new IllegalStateException("must be active to start");
+		channel.startAt(systemTimeMillis);
+
+		fireStarted(offlinePositionMillis, PlayerEvent.USER_COMMAND);
+	}
+
+	@Override
+	public DriftStatistics getDriftStatistics() {
+		if(!isActive()) return null;
+		return channel.getDriftStatistics();
+	}
+
 	@Override
 	public void pause() {
 		if(!isActive()) throw new IllegalStateException("player is not active");
@@ -190,10 +204,10 @@ public class JSPlayer extends AbstractPlayer
 	@Override
 	public void setPositionAsync(double position, Runnable onFinished) {
 		if (position < 0) throw new IllegalArgumentException("position = " + position);
-		new Thread(() -> {
+		engine.getExecutor().execute(() -> {
 			setPositionBlocking(position, -1);
 			if(onFinished != null) onFinished.run();
-		}).start();
+		});
 	}
 
 	@Override
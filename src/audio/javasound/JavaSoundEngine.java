@@ -42,7 +42,7 @@ public class JavaSoundEngine extends AudioEngine
 
 
 	@Override
-	public JSPlayer newPlayer(MediaFile media) {
+	public synchronized JSPlayer newPlayer(MediaFile media) {
 		Media prep;
 
 		if(mediaMap.containsKey(media)) {
@@ -105,6 +105,7 @@ public class JavaSoundEngine extends AudioEngine
 		for(Player player : players) {
 			player.dispose();
 		}
+		shutdownExecutor();
 	}
 
 
@@ -3,6 +3,7 @@ package audio.javasound;
 import audio.*;
 import audio.javasound.lib.AudioSystem2;
 import audio.javasound.lib.MemoryAudioBuffer;
+import audio.util.DurationService;
 
 import javax.sound.sampled.*;
 import java.io.BufferedInputStream;
@@ -22,6 +23,7 @@ public class Media
 
 	// Objects after Preparation
 	private MediaInfo info;
+	private volatile double headerDuration = -1;  // duration read from the file headers, possibly estimated until scanned, -1 if unknown
 	private AudioDataFormat encodedAudioFormat;
 	private AudioDataFormat decodedAudioFormat;
 	private MemoryAudioBuffer buffer;
@@ -200,6 +202,9 @@ public class Media
 			}
 			MediaFormat format = AudioSystem2.toMediaFormat(engine, aff);
 			info = engine.createMediaInfo(mediaFile, format);
+			if(mediaFile.getFile() != null) {
+				headerDuration = DurationService.getDuration(mediaFile.getFile(), exact -> headerDuration = exact);
+			}
 			encodedAudioFormat = format.getAudioDataFormat();
 		}
 		else // MediaStream
@@ -274,9 +279,15 @@ public class Media
 	}
 
 
+	/**
+	 * Returns the duration in seconds. Before decoding has finished, the duration is taken from the file headers,
+	 * see {@link DurationService}. If they do not specify it exactly, it is estimated until the frames have been counted.
+	 * @return the duration or <code>-1</code> if not known yet
+	 */
 	public double getDuration() {
-		if(buffer.isClosed()) return buffer.getDurationMicros() / 1000_000.0;
-		else return info.getDuration();
+		if(buffer != null && buffer.isClosed()) return buffer.getDurationMicros() / 1000_000.0;
+		if(headerDuration >= 0) return headerDuration;
+		return info != null ? info.getDuration() : -1;
 	}
 
 }
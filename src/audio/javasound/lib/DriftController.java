@@ -0,0 +1,71 @@
+package audio.javasound.lib;
+
+import audio.DriftStatistics;
+
+/**
+ * Keeps the output of a {@link VirtualChannel} aligned with the system clock after a scheduled start.
+ *
+ * <p>Sound cards run on their own crystal which may differ from the system clock by tens of ppm.
+ * The controller compares the frame position reported by the line with the frame position expected
+ * from the elapsed system time and requests single frames to be inserted or dropped
+ * whenever the smoothed deviation exceeds {@link #TOLERANCE} seconds.
+ * Larger deviations, e.g. after a buffer underrun, are corrected at once.
+ * </p>
+ */
+public class DriftController
+{
+	private static final double TOLERANCE = 0.001;
+	private static final double RESYNC_THRESHOLD = 0.05;
+	private static final double SMOOTHING = 0.02;
+
+	private final double frameRate;
+	private final long syncNanos; // nanoTime at which syncLineFrame is played
+	private final long syncLineFrame; // line frame position of the first frame on the timeline
+
+	private long insertedFrames;
+	private long droppedFrames;
+	private double error; // smoothed deviation in frames, positive if the line is ahead
+	private boolean initialized;
+
+
+	public DriftController(double frameRate, long syncNanos, long syncLineFrame) {
+		this.frameRate = frameRate;
+		this.syncNanos = syncNanos;
+		this.syncLineFrame = syncLineFrame;
+	}
+
+
+	/**
+	 * Measures the current deviation.
+	 * @param lineFrame the frame position of the line
+	 * @param nanoTime the current time as returned by {@link System#nanoTime()}
+	 * @return number of frames to insert (positive) or drop (negative) now
+	 */
+	public synchronized int update(long lineFrame, long nanoTime) {
+		long played = lineFrame - syncLineFrame;
+		if(played <= 0) return 0; // still pre-rolling
+		double expected = (nanoTime - syncNanos) * frameRate / 1e9;
+		double measured = played - insertedFrames + droppedFrames - expected;
+
+		error = initialized ? error + SMOOTHING * (measured - error) : measured;
+		initialized = true;
+
+		if(Math.abs(error) > RESYNC_THRESHOLD * frameRate) return (int) Math.round(error);
+		if(error > TOLERANCE * frameRate) return 1;
+		if(error < -TOLERANCE * frameRate) return -1;
+		return 0;
+	}
+
+	/**
+	 * Records frames that have been inserted (positive) or dropped (negative).
+	 */
+	public synchronized void corrected(int frames) {
+		if(frames > 0) insertedFrames += frames;
+		else droppedFrames -= frames;
+		error -= frames;
+	}
+
+	public synchronized DriftStatistics getStatistics() {
+		return new DriftStatistics(error / frameRate * 1000, insertedFrames, droppedFrames);
+	}
+}
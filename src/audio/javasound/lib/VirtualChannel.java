@@ -1,8 +1,11 @@
 package audio.javasound.lib;
 
+import audio.DriftStatistics;
+
 import javax.sound.sampled.*;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.atomic.AtomicLong;
@@ -16,6 +19,8 @@ public class VirtualChannel
 	// Status
 	private volatile boolean running;
 	private volatile boolean alive;
+	private volatile long scheduledStart; // system time in millis at which output should begin, 0 if not scheduled
+	private volatile DriftController driftController; // active after a scheduled start
 
 	/**
 	 * Frame position in the current input stream.
@@ -59,8 +64,29 @@ public class VirtualChannel
 		thread.continueSynchronized();
 	}
 
+	/**
+	 * Starts the line immediately but delays the first frame of the input stream
+	 * so that it is played at the given time.
+	 * The delay is filled with silence, timed by the line itself.
+	 * If the time has already passed, the corresponding number of frames is skipped instead.
+	 * @param systemTimeMillis time as returned by {@link System#currentTimeMillis()}
+	 */
+	public synchronized void startAt(long systemTimeMillis) {
+		if(line == null) throw new IllegalStateException("no output line specified");
+		if(audioInputStream == null) throw new IllegalStateException("no input specified");
+		if(running) return;
+
+		scheduledStart = systemTimeMillis;
+		line.start();
+		running = true;
+
+		thread.continueSynchronized();
+	}
+
 
 	public synchronized void stop() {
+		scheduledStart = 0;
+		driftController = null;
 		if(!running) return;
 
 		line.stop();
@@ -102,6 +128,15 @@ public class VirtualChannel
 		return bytesRead.get() / format.getFrameSize();
 	}
 
+	/**
+	 * Returns the drift statistics since the last scheduled start or <code>null</code> if playback was not scheduled.
+	 * @see #startAt(long)
+	 */
+	public DriftStatistics getDriftStatistics() {
+		DriftController controller = driftController;
+		return controller == null ? null : controller.getStatistics();
+	}
+
 	public int getFrameLag() {
 		if(line == null) return -1;
 		return line.getBufferSize() / format.getFrameSize();
@@ -121,6 +156,7 @@ public class VirtualChannel
 		boolean wasRunning = running;
 
 		running = false;
+		driftController = null;
 		if(flush && line != null) {
 			line.flush();
 		}
@@ -165,6 +201,7 @@ public class VirtualChannel
 
 		// Stop the old line
 		running = false;
+		driftController = null;
 		if(oldLine != null) oldLine.stop(); // This will cause the thread pause
 		thread.synchronizeBuffer();
 
@@ -327,6 +364,13 @@ public class VirtualChannel
 					continue;
 				}
 
+				long startTime = scheduledStart;
+				if(startTime != 0) {
+					scheduledStart = 0;
+					preRoll(startTime);
+					continue;
+				}
+
 				int readBytes;
 				int writtenBytes = 0;
 
@@ -343,8 +387,10 @@ public class VirtualChannel
 
 						// Write to line
 						if(tmpBuffer.bytesAvailable()) {
+							int droppedBytes = correctDrift();
 							writtenBytes = line.write(tmpBuffer.data(), 0, tmpBuffer.readLength());
 							tmpBuffer.bytesRead(writtenBytes);
+							writtenBytes += droppedBytes;
 						}
 					}
 				}
@@ -363,6 +409,74 @@ public class VirtualChannel
 				}
 			}
 		}
+
+		/**
+		 * Writes silence to the line until the given time is reached or skips input
+		 * if the time has already passed.
+		 * Frames still queued in the line are taken into account.
+		 */
+		private void preRoll(long startTime) throws IOException {
+			int frameSize = format.getFrameSize();
+			long linePosition = line.getLongFramePosition();
+			long nanoTime = System.nanoTime();
+			long queuedFrames = (line.getBufferSize() - line.available()) / frameSize;
+			long frames = Math.round((startTime - System.currentTimeMillis()) * format.getFrameRate() / 1000.0) - queuedFrames;
+
+			if(frames < 0) {
+				long skipped = audioInputStream.skip(-frames * frameSize);
+				if(skipped > 0) bytesRead.addAndGet(skipped);
+			}
+			else {
+				byte[] silence = silence((int) Math.min(frames * frameSize, line.getBufferSize()));
+				long remaining = frames * frameSize;
+				while(remaining > 0 && running && !exit) {
+					int length = (int) Math.min(silence.length, remaining);
+					int written = line.write(silence, 0, length);
+					remaining -= written;
+					if(written < length) return; // line was stopped or flushed
+				}
+			}
+
+			// The first frame of the input is played after the queued frames and the silence
+			long leadFrames = queuedFrames + Math.max(frames, 0);
+			driftController = new DriftController(format.getFrameRate(), nanoTime + (long) (leadFrames / format.getFrameRate() * 1e9), linePosition + leadFrames);
+		}
+
+		/**
+		 * Inserts or drops frames at the beginning of the temporary buffer as requested by the drift controller.
+		 * A single inserted frame repeats the next frame, larger gaps are filled with silence.
+		 * @return the number of bytes dropped from the temporary buffer
+		 */
+		private int correctDrift() {
+			DriftController controller = driftController;
+			if(controller == null) return 0;
+			int frameSize = format.getFrameSize();
+			int frames = controller.update(line.getLongFramePosition(), System.nanoTime());
+
+			if(frames == 1 && tmpBuffer.readLength() >= frameSize) {
+				if(line.write(tmpBuffer.data(), 0, frameSize) == frameSize) controller.corrected(1);
+			}
+			else if(frames > 1) {
+				int written = line.write(silence(frames * frameSize), 0, frames * frameSize);
+				controller.corrected(written / frameSize);
+			}
+			else if(frames < 0) {
+				int drop = Math.min(-frames, tmpBuffer.readLength() / frameSize - 1); // keep at least one frame
+				if(drop <= 0) return 0;
+				tmpBuffer.bytesRead(drop * frameSize);
+				controller.corrected(-drop);
+				return drop * frameSize;
+			}
+			return 0;
+		}
+
+		private byte[] silence(int length) {
+			byte[] silence = new byte[length];
+			if(format.getEncoding() == AudioFormat.Encoding.PCM_UNSIGNED) {
+				Arrays.fill(silence, (byte) 0x80);
+			}
+			return silence;
+		}
 	}
 
 
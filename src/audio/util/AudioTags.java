@@ -0,0 +1,61 @@
+package audio.util;
+
+/**
+ * Descriptive properties of an audio file as read from its headers by {@link TagReader}.
+ * Each property is <code>null</code> if the file does not specify it.
+ */
+public class AudioTags
+{
+	public static final AudioTags EMPTY = new AudioTags(null, null, null, -1, false);
+
+	private final String title, artist, album;
+	private final double duration;
+	private final boolean exactDuration;
+
+
+	/**
+	 * @param duration duration in seconds or <code>-1</code> if unknown
+	 * @param exactDuration whether the duration was read from a frame count rather than estimated from the bit rate
+	 */
+	public AudioTags(String title, String artist, String album, double duration, boolean exactDuration) {
+		this.title = title;
+		this.artist = artist;
+		this.album = album;
+		this.duration = duration;
+		this.exactDuration = exactDuration && duration >= 0;
+	}
+
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getArtist() {
+		return artist;
+	}
+
+	public String getAlbum() {
+		return album;
+	}
+
+	/**
+	 * Returns the duration in seconds, <code>-1</code> if unknown.
+	 * @see #isExactDuration()
+	 */
+	public double getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns whether {@link #getDuration()} is known exactly.
+	 * Otherwise it is estimated from the bit rate of the first frame and may be off for files with variable bit rate.
+	 */
+	public boolean isExactDuration() {
+		return exactDuration;
+	}
+
+	@Override
+	public String toString() {
+		return (artist != null ? artist + " - " : "") + title + (album != null ? " (" + album + ")" : "") + ", " + duration + " s";
+	}
+}
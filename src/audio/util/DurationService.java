@@ -0,0 +1,289 @@
+package audio.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Determines the exact duration of audio files from their headers, without decoding any audio data.
+ * <p>
+ * MP3 files are covered by the Xing/Info (LAME) or VBRI header of the first frame. If there is none,
+ * the duration is estimated from the TLEN frame or the bitrate and the frame headers are walked from the first to the last frame
+ * on a background thread, seeking over the audio data in between.
+ * OGG files use the granule position of the last page, WAV and AIFF files the sizes in their headers.
+ * </p>
+ * The last {@value #MAX_CACHED} results are cached by path, size and modification time.
+ */
+public class DurationService
+{
+	private static final int MAX_CACHED = 4096;
+	private static final int MAX_RESYNC = 64 * 1024;  // bytes of garbage to skip between frames before giving up
+	private static final int FIRST_FRAME_BYTES = 68;  // enough to find the Xing, Info or VBRI tag in the first frame
+
+	private static final Map<String, CachedDuration> cache = new LinkedHashMap<String, CachedDuration>(256, 0.75f, true) {  // guarded by itself
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, CachedDuration> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+	private static final Map<String, List<DoubleConsumer>> scanning = new LinkedHashMap<>();  // guarded by itself
+	private static final Executor scanner = Executors.newSingleThreadExecutor(r -> {
+		Thread thread = new Thread(r, "Duration Scanner");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+
+	private static class CachedDuration
+	{
+		final long size, modified;
+		final double duration;
+		final boolean exact;  // false while an estimate is being replaced by a frame scan
+
+		CachedDuration(long size, long modified, double duration, boolean exact) {
+			this.size = size;
+			this.modified = modified;
+			this.duration = duration;
+			this.exact = exact;
+		}
+	}
+
+
+	private DurationService() {}
+
+
+	/**
+	 * Returns the exact duration of <code>file</code> in seconds, see {@link #getDuration(File, DoubleConsumer)}.
+	 */
+	public static double getDuration(File file) {
+		return getDuration(file, null);
+	}
+
+	/**
+	 * Returns the duration of <code>file</code> in seconds without walking through the file.
+	 * Must only be called for complete files.
+	 * <p>
+	 * If the exact duration is not contained in the headers, an estimate is returned
+	 * and the exact duration is determined on a background thread.
+	 * </p>
+	 * @param onScanned called from the background thread with the exact duration once it has been determined, may be <code>null</code>.
+	 *                  Not called if the returned duration is already exact.
+	 * @return the exact or estimated duration or <code>-1</code> if the format is not supported or the file cannot be read
+	 */
+	public static double getDuration(File file, DoubleConsumer onScanned) {
+		String key = file.getAbsolutePath();
+		long size = file.length();
+		long modified = file.lastModified();
+		CachedDuration cached;
+		synchronized(cache) {
+			cached = cache.get(key);
+		}
+		if(cached == null || cached.size != size || cached.modified != modified) {
+			try {
+				cached = readDuration(file, size, modified);
+			} catch(IOException | IndexOutOfBoundsException e) {
+				cached = new CachedDuration(size, modified, -1, true);
+			}
+			synchronized(cache) {
+				cache.put(key, cached);
+			}
+		}
+		if(!cached.exact) scanInBackground(file, key, cached, onScanned);
+		return cached.duration;
+	}
+
+	private static CachedDuration readDuration(File file, long size, long modified) throws IOException {
+		String name = file.getName().toLowerCase();
+		if(name.endsWith(".mp3")) {
+			AudioTags tags = TagReader.read(file);
+			return new CachedDuration(size, modified, tags.getDuration(), tags.isExactDuration());
+		}
+		if(name.endsWith(".ogg") || name.endsWith(".oga") || name.endsWith(".opus")) {
+			AudioTags tags = TagReader.read(file);
+			return new CachedDuration(size, modified, tags.isExactDuration() ? tags.getDuration() : -1, true);
+		}
+		double duration = -1;
+		try(RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			if(name.endsWith(".wav")) duration = readWav(in);
+			else if(name.endsWith(".aif") || name.endsWith(".aiff")) duration = readAiff(in);
+		} catch(EOFException e) {
+			duration = -1;
+		}
+		return new CachedDuration(size, modified, duration, true);
+	}
+
+	/**
+	 * Walks the frames of an MP3 file on the scanner thread, replacing the cached <code>estimate</code>.
+	 * Concurrent requests for the same file share one scan.
+	 */
+	private static void scanInBackground(File file, String key, CachedDuration estimate, DoubleConsumer onScanned) {
+		synchronized(scanning) {
+			List<DoubleConsumer> callbacks = scanning.get(key);
+			if(callbacks != null) {
+				if(onScanned != null) callbacks.add(onScanned);
+				return;
+			}
+			callbacks = new ArrayList<>();
+			if(onScanned != null) callbacks.add(onScanned);
+			scanning.put(key, callbacks);
+		}
+		scanner.execute(() -> {
+			double duration;
+			try {
+				duration = scanMP3(file);
+			} catch(IOException | IndexOutOfBoundsException e) {
+				duration = -1;
+			}
+			if(duration < 0) duration = estimate.duration;
+			synchronized(cache) {
+				cache.put(key, new CachedDuration(estimate.size, estimate.modified, duration, true));
+			}
+			List<DoubleConsumer> callbacks;
+			synchronized(scanning) {
+				callbacks = scanning.remove(key);
+			}
+			for(DoubleConsumer callback : callbacks) {
+				callback.accept(duration);
+			}
+		});
+	}
+
+	/**
+	 * Walks the frame headers of an MP3 file and adds up their samples.
+	 * Only the header of each frame is read, the audio data is skipped by seeking.
+	 */
+	private static double scanMP3(File file) throws IOException {
+		try(RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			long length = in.length();
+			byte[] header = new byte[FIRST_FRAME_BYTES];
+			in.readFully(header, 0, 10);
+			long position = 0;
+			if(header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+				position = 10 + TagReader.syncsafe(header, 6) + ((header[5] & 0x10) != 0 ? 10 : 0);
+			}
+			long samples = 0;
+			int sampleRate = 0;
+			boolean first = true;
+			while(position + 4 <= length) {
+				in.seek(position);
+				int read = in.read(header, 0, first ? FIRST_FRAME_BYTES : 4);
+				if(read < 4) break;
+				TagReader.Frame frame = TagReader.Frame.parse(header, 0);
+				if(frame == null || (sampleRate != 0 && frame.sampleRate != sampleRate)) {
+					if(header[0] == 'T' && header[1] == 'A' && header[2] == 'G') break;  // ID3v1 tag at the end
+					position = resync(in, position + 1, sampleRate);
+					if(position < 0) break;
+					continue;
+				}
+				int frameLength = frame.length();
+				if(frameLength <= 4) break;
+				if(first) {
+					first = false;
+					sampleRate = frame.sampleRate;
+					// The first frame may be an Info frame without a frame count, which contains no audio
+					int inspected = Math.min(read, frameLength);
+					boolean info = containsTag(header, inspected, "Xing") || containsTag(header, inspected, "Info") || containsTag(header, inspected, "VBRI");
+					if(!info) samples += frame.samplesPerFrame;
+				} else {
+					samples += frame.samplesPerFrame;
+				}
+				position += frameLength;
+			}
+			return sampleRate > 0 ? samples / (double) sampleRate : -1;
+		}
+	}
+
+	/**
+	 * Searches for the next frame header at or after <code>from</code>, reading blocks instead of single bytes.
+	 * @param sampleRate sample rate the frame must have, 0 for any
+	 * @return the position of the frame or <code>-1</code> if none was found within {@link #MAX_RESYNC} bytes
+	 */
+	private static long resync(RandomAccessFile in, long from, int sampleRate) throws IOException {
+		byte[] window = new byte[4096];
+		long position = from;
+		while(position - from <= MAX_RESYNC) {
+			in.seek(position);
+			int read = in.read(window);
+			if(read < 4) return -1;
+			for(int i = 0; i + 4 <= read; i++) {
+				TagReader.Frame frame = TagReader.Frame.parse(window, i);
+				if(frame != null && (sampleRate == 0 || frame.sampleRate == sampleRate)) return position + i;
+			}
+			position += read - 3;
+		}
+		return -1;
+	}
+
+	private static double readWav(RandomAccessFile in) throws IOException {
+		byte[] header = new byte[12];
+		in.readFully(header);
+		if(!TagReader.ascii(header, 0, "RIFF") || !TagReader.ascii(header, 8, "WAVE")) return -1;
+		long byteRate = -1;
+		byte[] chunk = new byte[8];
+		while(in.getFilePointer() + 8 <= in.length()) {
+			in.readFully(chunk);
+			String id = new String(chunk, 0, 4, StandardCharsets.ISO_8859_1);
+			long size = TagReader.int32le(chunk, 4);
+			if(id.equals("fmt ")) {
+				byte[] fmt = new byte[16];
+				in.readFully(fmt);
+				byteRate = TagReader.int32le(fmt, 8);
+				in.seek(in.getFilePointer() + size - 16 + (size & 1));
+			} else if(id.equals("data")) {
+				if(byteRate <= 0) return -1;
+				long dataSize = Math.min(size, in.length() - in.getFilePointer());
+				return dataSize / (double) byteRate;
+			} else {
+				in.seek(in.getFilePointer() + size + (size & 1));
+			}
+		}
+		return -1;
+	}
+
+	private static double readAiff(RandomAccessFile in) throws IOException {
+		byte[] header = new byte[12];
+		in.readFully(header);
+		if(!TagReader.ascii(header, 0, "FORM") || !(TagReader.ascii(header, 8, "AIFF") || TagReader.ascii(header, 8, "AIFC"))) return -1;
+		byte[] chunk = new byte[8];
+		while(in.getFilePointer() + 8 <= in.length()) {
+			in.readFully(chunk);
+			String id = new String(chunk, 0, 4, StandardCharsets.ISO_8859_1);
+			long size = TagReader.int32(chunk, 4);
+			if(id.equals("COMM")) {
+				byte[] comm = new byte[18];
+				in.readFully(comm);
+				long frames = TagReader.int32(comm, 2);
+				double sampleRate = extended(comm, 8);
+				return sampleRate > 0 ? frames / sampleRate : -1;
+			}
+			in.seek(in.getFilePointer() + size + (size & 1));
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes an 80-bit IEEE 754 extended precision number as used for the sample rate of AIFF files.
+	 */
+	private static double extended(byte[] b, int offset) {
+		int exponent = (((b[offset] & 0x7F) << 8) | (b[offset + 1] & 0xFF)) - 16383;
+		long mantissa = 0;
+		for(int i = 0; i < 8; i++) {
+			mantissa = (mantissa << 8) | (b[offset + 2 + i] & 0xFF);
+		}
+		double value = (mantissa >>> 1) * 2.0 + (mantissa & 1);  // unsigned
+		return Math.scalb(value, exponent - 63) * ((b[offset] & 0x80) != 0 ? -1 : 1);
+	}
+
+	private static boolean containsTag(byte[] b, int length, String tag) {
+		for(int i = 4; i + tag.length() <= length; i++) {
+			if(TagReader.ascii(b, i, tag)) return true;
+		}
+		return false;
+	}
+}
@@ -5,7 +5,11 @@ import java.util.concurrent.*;
 
 public class SystemTimeManager implements Runnable
 {
-	private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "System Time Manager");
+		thread.setDaemon(true);
+		return thread;
+	});
 	private ScheduledFuture<?> scheduleHandler;
 
 	private List<SystemTimeJumpListener> timeJumpListeners = new CopyOnWriteArrayList<SystemTimeJumpListener>();
@@ -17,6 +21,11 @@ public class SystemTimeManager implements Runnable
 	public SystemTimeManager() {
 	}
 	
+	/**
+	 * Checks the system time every <code>durationMillis</code>.
+	 * Jumps are detected at the first check after the system resumes, so listeners are notified
+	 * up to <code>durationMillis</code> after wake-up. Shorter periods react faster at a higher cost.
+	 */
 	public void start(int durationMillis) {
 		if(scheduleHandler != null) {
 			throw new IllegalStateException("Already running");
@@ -44,6 +53,7 @@ public class SystemTimeManager implements Runnable
 
 	public void dispose() {
 		scheduleHandler.cancel(false);
+		scheduler.shutdown();
 	}
 	
 	
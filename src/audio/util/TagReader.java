@@ -0,0 +1,373 @@
+package audio.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads tags and the duration of audio files without decoding them.
+ * <p>
+ * Only headers are read: for MP3 files the ID3v2 tag at the beginning, the first frame with its Xing/Info or VBRI header
+ * and the ID3v1 tag at the end; for OGG files the identification and comment headers and the last page.
+ * Frames of ID3v2 tags that are not needed, such as embedded pictures, are skipped without reading them.
+ * </p>
+ * <p>
+ * Other formats yield {@link AudioTags#EMPTY}.
+ * </p>
+ */
+public class TagReader
+{
+	private static final int MAX_SYNC_SEARCH = 64 * 1024;
+	private static final int MAX_OGG_PACKET = 512 * 1024;
+	private static final int OGG_TAIL = 64 * 1024;
+
+	private static final int[][] BITRATES = {  // kbit/s by [version 1 ? layer - 1 : 3 + min(layer, 2) - 1][index]
+			{0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},  // V1 L1
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},  // V1 L2
+			{0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},  // V1 L3
+			{0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},  // V2 L1
+			{0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},  // V2 L2 & L3
+	};
+	private static final int[][] SAMPLE_RATES = {  // by [version bits][index]
+			{11025, 12000, 8000},  // MPEG 2.5
+			null,
+			{22050, 24000, 16000},  // MPEG 2
+			{44100, 48000, 32000},  // MPEG 1
+	};
+
+
+	private TagReader() {}
+
+
+	/**
+	 * Reads the tags of <code>file</code>.
+	 * @throws IOException if the file cannot be read
+	 */
+	public static AudioTags read(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		try(RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			if(name.endsWith(".mp3")) return readMP3(in);
+			if(name.endsWith(".ogg") || name.endsWith(".oga") || name.endsWith(".opus")) return readOgg(in);
+			return AudioTags.EMPTY;
+		} catch(EOFException | IndexOutOfBoundsException e) {
+			return AudioTags.EMPTY;  // truncated file
+		}
+	}
+
+
+	// MP3
+
+	private static AudioTags readMP3(RandomAccessFile in) throws IOException {
+		String title = null, artist = null, album = null;
+		double taggedDuration = -1;
+		long audioStart = 0;
+		long audioEnd = in.length();
+
+		byte[] header = new byte[10];
+		in.readFully(header);
+		if(header[0] == 'I' && header[1] == 'D' && header[2] == '3') {
+			int version = header[3];
+			int flags = header[5] & 0xFF;
+			long size = syncsafe(header, 6);
+			audioStart = 10 + size + ((flags & 0x10) != 0 ? 10 : 0);
+			long position = 10;
+			if((flags & 0x40) != 0 && version >= 3) {  // extended header
+				byte[] ext = new byte[4];
+				in.readFully(ext);
+				position += version == 4 ? syncsafe(ext, 0) : 4 + int32(ext, 0);
+			}
+			int headerSize = version == 2 ? 6 : 10;
+			byte[] frameHeader = new byte[headerSize];
+			while(position + headerSize <= 10 + size) {
+				in.seek(position);
+				in.readFully(frameHeader);
+				if(frameHeader[0] == 0) break;  // padding
+				String id;
+				long frameSize;
+				if(version == 2) {
+					id = new String(frameHeader, 0, 3, StandardCharsets.ISO_8859_1);
+					frameSize = ((frameHeader[3] & 0xFF) << 16) | ((frameHeader[4] & 0xFF) << 8) | (frameHeader[5] & 0xFF);
+				} else {
+					id = new String(frameHeader, 0, 4, StandardCharsets.ISO_8859_1);
+					frameSize = version == 4 ? syncsafe(frameHeader, 4) : int32(frameHeader, 4);
+				}
+				position += headerSize + frameSize;
+				if(frameSize <= 0 || position > 10 + size) break;
+				switch(id) {
+					case "TIT2": case "TT2": title = readTextFrame(in, frameSize); break;
+					case "TPE1": case "TP1": artist = readTextFrame(in, frameSize); break;
+					case "TALB": case "TAL": album = readTextFrame(in, frameSize); break;
+					case "TLEN": case "TLE":
+						try {
+							taggedDuration = Long.parseLong(readTextFrame(in, frameSize).trim()) / 1000.0;
+						} catch(NumberFormatException | NullPointerException e) {
+							// ignore invalid length
+						}
+						break;
+				}
+			}
+		}
+
+		if(in.length() >= 128 && (title == null || artist == null || album == null)) {
+			byte[] v1 = new byte[128];
+			in.seek(in.length() - 128);
+			in.readFully(v1);
+			if(v1[0] == 'T' && v1[1] == 'A' && v1[2] == 'G') {
+				audioEnd -= 128;
+				if(title == null) title = latin1(v1, 3, 30);
+				if(artist == null) artist = latin1(v1, 33, 30);
+				if(album == null) album = latin1(v1, 63, 30);
+			}
+		}
+
+		double duration = -1;
+		boolean exact = false;
+		byte[] buffer = new byte[(int) Math.min(MAX_SYNC_SEARCH, Math.max(0, audioEnd - audioStart))];
+		in.seek(audioStart);
+		in.readFully(buffer);
+		for(int i = 0; i + 4 <= buffer.length; i++) {
+			Frame frame = Frame.parse(buffer, i);
+			if(frame == null) continue;
+			long frames = frame.readFrameCount(buffer, i);
+			if(frames > 0) {
+				duration = frames * frame.samplesPerFrame / (double) frame.sampleRate;
+				exact = true;
+			} else if(taggedDuration > 0) {
+				duration = taggedDuration;
+			} else {
+				duration = (audioEnd - audioStart - i) * 8.0 / (frame.bitrate * 1000.0);
+			}
+			break;
+		}
+		return new AudioTags(title, artist, album, duration, exact);
+	}
+
+	static class Frame
+	{
+		final boolean version1, mono, padding;
+		final int layer, bitrate, sampleRate, samplesPerFrame;
+
+		private Frame(boolean version1, boolean mono, boolean padding, int layer, int bitrate, int sampleRate, int samplesPerFrame) {
+			this.version1 = version1;
+			this.mono = mono;
+			this.padding = padding;
+			this.layer = layer;
+			this.bitrate = bitrate;
+			this.sampleRate = sampleRate;
+			this.samplesPerFrame = samplesPerFrame;
+		}
+
+		/**
+		 * Returns the length of this frame in bytes, including the header.
+		 */
+		int length() {
+			if(layer == 1) return (12 * bitrate * 1000 / sampleRate + (padding ? 1 : 0)) * 4;
+			return samplesPerFrame / 8 * bitrate * 1000 / sampleRate + (padding ? 1 : 0);
+		}
+
+		/**
+		 * Parses the frame header at <code>offset</code>.
+		 * @return the frame or <code>null</code> if there is no valid header at this position
+		 */
+		static Frame parse(byte[] b, int offset) {
+			if((b[offset] & 0xFF) != 0xFF || (b[offset + 1] & 0xE0) != 0xE0) return null;
+			int versionBits = (b[offset + 1] >> 3) & 3;
+			int layerBits = (b[offset + 1] >> 1) & 3;
+			int bitrateIndex = (b[offset + 2] >> 4) & 0xF;
+			int sampleRateIndex = (b[offset + 2] >> 2) & 3;
+			if(versionBits == 1 || layerBits == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) return null;
+			boolean version1 = versionBits == 3;
+			int layer = 4 - layerBits;
+			int bitrate = BITRATES[version1 ? layer - 1 : 3 + Math.min(layer, 2) - 1][bitrateIndex];
+			int sampleRate = SAMPLE_RATES[versionBits][sampleRateIndex];
+			int samplesPerFrame = layer == 1 ? 384 : (layer == 3 && !version1 ? 576 : 1152);
+			boolean mono = ((b[offset + 3] >> 6) & 3) == 3;
+			boolean padding = ((b[offset + 2] >> 1) & 1) == 1;
+			return new Frame(version1, mono, padding, layer, bitrate, sampleRate, samplesPerFrame);
+		}
+
+		/**
+		 * Reads the number of frames from a Xing/Info or VBRI header in the frame at <code>offset</code>.
+		 * @return the number of frames or <code>-1</code> if the frame contains neither header
+		 */
+		long readFrameCount(byte[] b, int offset) {
+			int xing = offset + 4 + (version1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+			if(xing + 12 <= b.length && (ascii(b, xing, "Xing") || ascii(b, xing, "Info"))) {
+				long flags = int32(b, xing + 4);
+				return (flags & 1) != 0 ? int32(b, xing + 8) : -1;
+			}
+			int vbri = offset + 36;
+			if(vbri + 18 <= b.length && ascii(b, vbri, "VBRI")) {
+				return int32(b, vbri + 14);
+			}
+			return -1;
+		}
+	}
+
+	private static String readTextFrame(RandomAccessFile in, long frameSize) throws IOException {
+		if(frameSize < 2 || frameSize > 64 * 1024) return null;
+		byte[] data = new byte[(int) frameSize];
+		in.readFully(data);
+		Charset charset;
+		switch(data[0]) {
+			case 1: charset = StandardCharsets.UTF_16; break;
+			case 2: charset = StandardCharsets.UTF_16BE; break;
+			case 3: charset = StandardCharsets.UTF_8; break;
+			default: charset = StandardCharsets.ISO_8859_1;
+		}
+		String text = new String(data, 1, data.length - 1, charset);
+		int end = text.indexOf('\0');  // multiple values are separated by null characters, use the first
+		if(end >= 0) text = text.substring(0, end);
+		text = text.trim();
+		return text.isEmpty() ? null : text;
+	}
+
+
+	// OGG
+
+	private static AudioTags readOgg(RandomAccessFile in) throws IOException {
+		OggPackets packets = new OggPackets(in);
+		byte[] identification = packets.next();
+		int sampleRate;
+		int preSkip = 0;
+		String commentMagic;
+		int commentOffset;
+		if(identification.length >= 16 && identification[0] == 1 && ascii(identification, 1, "vorbis")) {
+			sampleRate = (int) int32le(identification, 12);
+			commentMagic = "\u0003vorbis";
+			commentOffset = 7;
+		} else if(identification.length >= 12 && ascii(identification, 0, "OpusHead")) {
+			sampleRate = 48000;  // granule positions of Opus streams always count 48 kHz samples
+			preSkip = (identification[10] & 0xFF) | ((identification[11] & 0xFF) << 8);
+			commentMagic = "OpusTags";
+			commentOffset = 8;
+		} else {
+			return AudioTags.EMPTY;
+		}
+
+		String title = null, artist = null, album = null;
+		byte[] comments = packets.next();
+		if(ascii(comments, 0, commentMagic)) {
+			int position = commentOffset;
+			position += 4 + int32le(comments, position);  // vendor string
+			long count = int32le(comments, position);
+			position += 4;
+			for(long i = 0; i < count && position + 4 <= comments.length; i++) {
+				int length = (int) int32le(comments, position);
+				position += 4;
+				if(length < 0 || position + length > comments.length) break;  // truncated, e.g. by a large picture
+				String comment = new String(comments, position, length, StandardCharsets.UTF_8);
+				position += length;
+				int separator = comment.indexOf('=');
+				if(separator < 0) continue;
+				String key = comment.substring(0, separator).toUpperCase();
+				String value = comment.substring(separator + 1).trim();
+				if(value.isEmpty()) continue;
+				if(key.equals("TITLE") && title == null) title = value;
+				else if(key.equals("ARTIST") && artist == null) artist = value;
+				else if(key.equals("ALBUM") && album == null) album = value;
+			}
+		}
+
+		double duration = -1;
+		long granule = lastGranulePosition(in);
+		if(granule > 0 && sampleRate > 0) duration = (granule - preSkip) / (double) sampleRate;
+		return new AudioTags(title, artist, album, duration, duration >= 0);
+	}
+
+	/**
+	 * Finds the granule position of the last page, the number of samples in the stream.
+	 * @return the granule position or <code>-1</code> if no page is found near the end of the file
+	 */
+	private static long lastGranulePosition(RandomAccessFile in) throws IOException {
+		int length = (int) Math.min(OGG_TAIL, in.length());
+		byte[] tail = new byte[length];
+		in.seek(in.length() - length);
+		in.readFully(tail);
+		for(int i = length - 27; i >= 0; i--) {
+			if(ascii(tail, i, "OggS")) {
+				long granule = int32le(tail, i + 6) | (int32le(tail, i + 10) << 32);
+				if(granule >= 0) return granule;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Assembles packets from consecutive OGG pages, starting at the beginning of the file.
+	 */
+	private static class OggPackets
+	{
+		private final RandomAccessFile in;
+		private final byte[] header = new byte[27];
+		private final byte[] lacing = new byte[255];
+		private int segmentCount, segment;  // of the current page
+
+		OggPackets(RandomAccessFile in) {
+			this.in = in;
+		}
+
+		/**
+		 * Reads the next packet. Packets longer than {@link #MAX_OGG_PACKET} are truncated.
+		 */
+		byte[] next() throws IOException {
+			ByteArrayOutputStream packet = new ByteArrayOutputStream();
+			while(true) {
+				if(segment == segmentCount) readPageHeader();
+				int size = lacing[segment++] & 0xFF;
+				if(packet.size() + size <= MAX_OGG_PACKET) {
+					byte[] data = new byte[size];
+					in.readFully(data);
+					packet.write(data);
+				} else {
+					in.skipBytes(size);
+				}
+				if(size < 255) return packet.toByteArray();
+				if(packet.size() >= MAX_OGG_PACKET) return packet.toByteArray();  // rest of the packet is not needed
+			}
+		}
+
+		private void readPageHeader() throws IOException {
+			in.readFully(header);
+			if(!ascii(header, 0, "OggS")) throw new EOFException("Not an OGG page");
+			segmentCount = header[26] & 0xFF;
+			segment = 0;
+			in.readFully(lacing, 0, segmentCount);
+		}
+	}
+
+
+	// Utilities
+
+	static long syncsafe(byte[] b, int offset) {
+		return ((b[offset] & 0x7F) << 21) | ((b[offset + 1] & 0x7F) << 14) | ((b[offset + 2] & 0x7F) << 7) | (b[offset + 3] & 0x7F);
+	}
+
+	static long int32(byte[] b, int offset) {
+		return ((long) (b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+	}
+
+	static long int32le(byte[] b, int offset) {
+		return ((long) (b[offset + 3] & 0xFF) << 24) | ((b[offset + 2] & 0xFF) << 16) | ((b[offset + 1] & 0xFF) << 8) | (b[offset] & 0xFF);
+	}
+
+	static boolean ascii(byte[] b, int offset, String text) {
+		if(offset + text.length() > b.length) return false;
+		for(int i = 0; i < text.length(); i++) {
+			if(b[offset + i] != (byte) text.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private static String latin1(byte[] b, int offset, int length) {
+		String text = new String(b, offset, length, StandardCharsets.ISO_8859_1);
+		int end = text.indexOf('\0');
+		if(end >= 0) text = text.substring(0, end);
+		text = text.trim();
+		return text.isEmpty() ? null : text;
+	}
+}
@@ -7,9 +7,9 @@ import javafx.collections.FXCollections
 import javafx.collections.ObservableList
 import player.FireLater
 import java.io.*
-import java.util.concurrent.Callable
+import java.util.ArrayDeque
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.CopyOnWriteArrayList
-import java.util.concurrent.Executors
 import java.util.logging.Level
 import java.util.logging.Logger
 
@@ -22,12 +22,31 @@ import java.util.logging.Logger
  * only know the isLocal peer and does not actively connect to other peers or
  * receive connections from such until a `connect` method is
  * called.
+ *
+ * The data model may be accessed from any thread.
+ * All modifications are serialized by a single lock and the data of each peer is stored as an immutable list
+ * that is replaced on every change (copy-on-write). Use [snapshot] to obtain a consistent view of all data.
+ *
+ * Listeners never run while the lock is held. Each modification takes a snapshot of the changed data under the lock
+ * and queues its notifications; the queue is then drained after the lock is released.
+ * The queue keeps the order of the modifications, so listeners see them in sequence, though possibly on the thread of a later modification.
  */
 class Cloud {
-    internal val allData = HashMap<Peer, ArrayList<Data>>()
-    private val dataListeners = HashMap<Class<out Data>, MutableList<Runnable>>()
+    private val lock = Any()
+    internal val allData = HashMap<Peer, List<Data>>()
+    /** Per class, functions that take a snapshot under the lock and return the notification to run after releasing it */
+    private val dataListeners = HashMap<Class<out Data>, MutableList<() -> Runnable>>()
+    private val notifications = ArrayDeque<Runnable>()  // guarded by lock, in modification order
+    private var delivering = false  // guarded by lock, whether a thread is draining notifications
+    /**
+     * Slices of [allData] per requested class (including subclasses) and peer.
+     * Entries are created by [getAll] and updated incrementally whenever the data of a peer changes.
+     */
+    private val classIndex = HashMap<Class<out Data>, LinkedHashMap<Peer, List<Data>>>()
+    private val assignable = HashMap<Pair<Class<*>, Class<*>>, Boolean>()
 
-    private val sData = HashMap<Class<out SynchronizedData>, SimpleObjectProperty<out SynchronizedData>>()
+    private val sValues = HashMap<Class<out SynchronizedData>, SynchronizedData>()  // current values, guarded by lock
+    private val sData = HashMap<Class<out SynchronizedData>, SimpleObjectProperty<out SynchronizedData>>()  // observable values, set when notifying
     private val ownerMap = HashMap<Data, Any>()
 
     val onUpdate = CopyOnWriteArrayList<Runnable>()
@@ -43,9 +62,55 @@ class Cloud {
 
     val updateLogger: Logger? = null
 
+    /**
+     * Whether to offer compression to peers.
+     * Compression is used on a connection only if both sides enable it. Changes affect new connections only.
+     */
+    var compressionEnabled = true
+
+    /**
+     * Delay between heartbeats sent to connected peers in milliseconds. Changes affect new connections only.
+     */
+    var heartbeatInterval: Long = 500
+    /**
+     * A peer is considered failed once its [PeerHealth.suspicion] exceeds this level.
+     */
+    var suspicionThreshold = 3.0
+    /**
+     * A peer is considered failed if nothing was received from it for this many milliseconds, regardless of its suspicion level.
+     */
+    var failureTimeout: Long = 5000
+
+    /**
+     * Invoked with a peer whose connection was lost and the data it owned, before that data is removed.
+     * Listeners may push copies of the data to keep it alive.
+     */
+    val onPeerLost = CopyOnWriteArrayList<(Peer, List<Data>) -> Unit>()
+
+    /**
+     * Invoked with the new value whenever synchronized data is replaced, locally or remotely.
+     * Changes made by operations are reported to [onSynchronizedOperation] instead.
+     * Listeners are called on the thread that made the change and must not block.
+     */
+    val onSynchronizedUpdate = CopyOnWriteArrayList<(SynchronizedData) -> Unit>()
+
+    /**
+     * Invoked with every operation applied to synchronized data, locally or remotely, see [pushOperation].
+     * Listeners are called on the thread that applied the operation and must not block.
+     */
+    val onSynchronizedOperation = CopyOnWriteArrayList<(SynchronizedOperation<*>) -> Unit>()
+
+    private val messageHandlers = ConcurrentHashMap<String, (Peer, ByteArray) -> Unit>()
+
+    /**
+     * Journal persisting the synchronized data, `null` until [openJournal] is called.
+     */
+    var journal: CloudJournal? = null
+        private set
+
 
     init {
-        allData[localPeer] = ArrayList()
+        allData[localPeer] = emptyList()
     }
 
 
@@ -53,8 +118,11 @@ class Cloud {
         localPeer = peer
         logger = Logger.getLogger("cloud ${peer.id}")
         peers.setAll(listOf(peer))
-        allData.clear()
-        allData[peer] = ArrayList()
+        synchronized(lock) {
+            allData.clear()
+            allData[peer] = emptyList()
+            classIndex.clear()
+        }
     }
 
 
@@ -101,35 +169,96 @@ class Cloud {
         return connection.socket.isConnected
     }
 
-    fun getLocalData(): ArrayList<Data> {
-        if (localPeer in allData) {
-            return allData[localPeer]!!
-        } else {
-            val exc = IllegalStateException()
-            exc.printStackTrace()
-            throw exc
+    /**
+     * Returns an immutable snapshot of the data owned by the local peer.
+     */
+    fun getLocalData(): List<Data> {
+        synchronized(lock) {
+            return allData[localPeer] ?: throw IllegalStateException("Local peer $localPeer has no data")
+        }
+    }
+
+    /**
+     * Returns a consistent point-in-time view of all synchronized and owned data.
+     * The returned collections are not modified by subsequent updates.
+     */
+    fun snapshot(): CloudState {
+        synchronized(lock) {
+            return CloudState(getSynchronizedData(), LinkedHashMap(allData))
+        }
+    }
+
+
+    /**
+     * Returns the number of bytes sent to [peer] and the compression ratio per message type.
+     */
+    fun getTrafficStats(peer: Peer): TrafficStats? {
+        return tcp?.connections?.firstOrNull { c -> c.peer == peer }?.traffic
+    }
+
+    /**
+     * Sends [payload] directly to the handler registered for [channel] on [peer], see [onMessage].
+     * Unlike data, messages are not stored, not serialized and not delivered to peers that connect later.
+     * Messages to the local peer are handled on the calling thread.
+     */
+    @Throws(IOException::class)
+    fun sendMessage(peer: Peer, channel: String, payload: ByteArray) {
+        if (peer.isLocal) {
+            receiveMessage(localPeer, channel, payload)
+            return
+        }
+        val conn = tcp?.connections?.firstOrNull { c -> c.peer == peer } ?: throw IOException("Not connected")
+        conn.sendMessage(channel, payload)
+    }
+
+    /**
+     * Registers the handler for messages on [channel], replacing the previous one, or removes it if [handler] is `null`.
+     * The handler is called with the sending peer on the thread receiving the message and must not block.
+     */
+    fun onMessage(channel: String, handler: ((Peer, ByteArray) -> Unit)?) {
+        if (handler != null) messageHandlers[channel] = handler else messageHandlers.remove(channel)
+    }
+
+    internal fun receiveMessage(peer: Peer, channel: String, payload: ByteArray) {
+        val handler = messageHandlers[channel]
+        if (handler == null) {
+            logger.fine("No handler for message from $peer on channel $channel")
+            return
+        }
+        try {
+            handler(peer, payload)
+        } catch (exc: Exception) {
+            logger.log(Level.WARNING, "Failed to handle message from $peer on channel $channel", exc)
         }
     }
 
+    @Throws(IOException::class)
+    internal fun openStream(peer: Peer, path: String, offset: Long = 0, length: Long = -1): InputStream {
+        val conn = tcp?.connections?.firstOrNull { c -> c.peer == peer } ?: throw IOException("Not connected")
+        return conn.openFileStream(path, offset, length)
+    }
 
     @Throws(IOException::class)
-    internal fun openStream(peer: Peer, path: String): InputStream {
+    internal fun requestChecksums(peer: Peer, path: String, chunkSize: Int): LongArray {
         val conn = tcp?.connections?.firstOrNull { c -> c.peer == peer } ?: throw IOException("Not connected")
-        return conn.openFileStream(path)
+        return conn.requestChecksums(path, chunkSize)
     }
 
 
 
     fun<T : SynchronizedData> getSynchronized(cls: Class<T>, observerThread: ((r: Runnable) -> Unit)?): ObservableValue<T> {
-        @Suppress("UNCHECKED_CAST")
-        val result =  if(cls in sData) sData[cls] as ObservableValue<T>
-        else {
-            val defaultValue = cls.getDeclaredConstructor().newInstance() as T
-            val property = SimpleObjectProperty(defaultValue)
-            sData[cls] = property
-            pushSynchronized(defaultValue)
-            property
+        val result = synchronized(lock) {
+            @Suppress("UNCHECKED_CAST")
+            if(cls in sData) sData[cls] as ObservableValue<T>
+            else {
+                val value = sValues[cls] as T?
+                val property = SimpleObjectProperty(value ?: cls.getDeclaredConstructor().newInstance())
+                sData[cls] = property
+                if (value == null) storeSynchronized(property.value, true)
+                property
+            }
         }
+        deliverNotifications()
         return if (observerThread == null) result else FireLater(result, observerThread)
     }
 
@@ -142,33 +271,71 @@ class Cloud {
     }
 
     fun pushSynchronizedImpl(data: SynchronizedData, localChange: Boolean) {
-        if (data.javaClass in sData)
-            sData[data.javaClass]?.value = data
-        else
-            sData[data.javaClass] = SimpleObjectProperty(data)
+        synchronized(lock) {
+            storeSynchronized(data, localChange)
+        }
+        deliverNotifications()
         fireUpdate()
+    }
+
+    /**
+     * Replaces the synchronized data of the class of [data]. Must be called while holding the lock.
+     */
+    private fun storeSynchronized(data: SynchronizedData, localChange: Boolean) {
+        setSynchronized(data)
+        notifications.add(Runnable { onSynchronizedUpdate.forEach { listener -> listener(data) } })
         if (localChange) tcp?.synchronizedUpdated(data)
     }
 
+    /**
+     * Stores [value] as the current value of its class and queues the update of the observable property.
+     * Must be called while holding the lock.
+     */
+    private fun setSynchronized(value: SynchronizedData) {
+        sValues[value.javaClass] = value
+        @Suppress("UNCHECKED_CAST")
+        val property = sData[value.javaClass] as SimpleObjectProperty<SynchronizedData>? ?: return
+        notifications.add(Runnable { property.value = value })
+    }
+
     fun remoteUpdateSynchronized(data: SynchronizedData, forceReplace: Boolean, isDataOlder: Boolean, logger: Logger?) {
-        if (data.javaClass in sData && !forceReplace) {
-            val localVersion = sData[data.javaClass]!!.value
-            val resolved = if (isDataOlder) data.resolveConflict(localVersion) else localVersion.resolveConflict(data)
-            logger?.fine("conflict: local = $localVersion, remote = $data -> $resolved")
-            if (resolved.javaClass != data.javaClass) throw IllegalStateException("resolveConflict must return object of the same class")
-            sData[data.javaClass]?.value = resolved
-            fireUpdate()
-        } else {
-            pushSynchronizedImpl(data, false)
+        synchronized(lock) {
+            val localVersion = sValues[data.javaClass]
+            if (localVersion != null && !forceReplace) {
+                val resolved = if (isDataOlder) data.resolveConflict(localVersion) else localVersion.resolveConflict(data)
+                logger?.fine("conflict: local = $localVersion, remote = $data -> $resolved")
+                if (resolved.javaClass != data.javaClass) throw IllegalStateException("resolveConflict must return object of the same class")
+                storeSynchronized(resolved, false)
+            } else {
+                storeSynchronized(data, false)
+            }
         }
+        deliverNotifications()
+        fireUpdate()
     }
 
-    fun getAllCurrentSynchronized(): List<SynchronizedData> {
-        val result = ArrayList<SynchronizedData>()
-        for ((_, prop) in sData) {
-            result.add(prop.value)
+    /**
+     * Applies [operation] to the synchronized data of its target class and sends only the operation to other peers.
+     * Unlike [pushSynchronized], concurrent operations by different peers never conflict.
+     */
+    fun <T : SynchronizedData> pushOperation(operation: SynchronizedOperation<T>) {
+        applyOperation(operation, true)
+    }
+
+    internal fun <T : SynchronizedData> applyOperation(operation: SynchronizedOperation<T>, localChange: Boolean) {
+        synchronized(lock) {
+            @Suppress("UNCHECKED_CAST")
+            val current = sValues[operation.target] as T?
+            setSynchronized(operation.applyTo(current ?: operation.target.getDeclaredConstructor().newInstance()))
+            notifications.add(Runnable { onSynchronizedOperation.forEach { listener -> listener(operation) } })
+            if (localChange) tcp?.synchronizedOperation(operation)
         }
-        return result
+        deliverNotifications()
+        fireUpdate()
+    }
+
+    fun getAllCurrentSynchronized(): List<SynchronizedData> {
+        return getSynchronizedData()
     }
 
 
@@ -182,39 +349,94 @@ class Cloud {
     fun<T : Data> getAll(cls: Class<T>, observer: Any, observerThread: ((r: Runnable) -> Unit)?): ObservableList<T> {
         val mirrorList = FXCollections.observableArrayList<T>()  // this list will only be changed on the observerThread
 
-        val listBuilder = Runnable {
+        val listBuilder = {  // runs under the lock
             @Suppress("UNCHECKED_CAST")
             val filteredList = assembleAllData(cls) as List<T>
-            updateLogger?.info("Updating list of class $cls for observer $observer")
-            if (observerThread != null) observerThread(Runnable { setAll(mirrorList, filteredList) })
-            else setAll(mirrorList, filteredList)
+            Runnable {
+                updateLogger?.info("Updating list of class $cls for observer $observer")
+                if (observerThread != null) observerThread(Runnable { setAll(mirrorList, filteredList) })
+                else setAll(mirrorList, filteredList)
+            }
         }
 
-        listBuilder.run()
-        dataListeners[cls]?.add(listBuilder) ?: run {
-            dataListeners[cls] = ArrayList(listOf(listBuilder))
+        synchronized(lock) {
+            listBuilder().run()  // the new list has no listeners yet, so filling it runs no foreign code
+            dataListeners[cls]?.add(listBuilder) ?: run {
+                dataListeners[cls] = ArrayList(listOf(listBuilder))
+            }
         }
         return mirrorList
     }
 
+    /**
+     * Updates [editableList] to contain [items] using hash lookups.
+     * Fires at most one removal, one addition and one replacement per changed item.
+     * Items that are equal but not [Data.identical] are replaced in place.
+     */
     private fun<T : Data> setAll(editableList: ObservableList<T>, items: List<T>) {
-        val toRemove = editableList.filter { item -> item !in items }
-        val toAdd = items.filter { item -> item !in editableList }
+        val newItems = HashMap<T, T>(items.size * 2)
+        for (item in items) newItems.putIfAbsent(item, item)
         // Remove old items
-        editableList.removeAll(toRemove)
+        val toRemove = HashSet<T>()
+        for (oldItem in editableList) {
+            if (oldItem !in newItems) toRemove.add(oldItem)
+        }
+        if (toRemove.isNotEmpty()) editableList.removeAll(toRemove)
         // Replace updated items
-        for ((index, oldItem) in editableList.withIndex()) {
-            val newItem = items.find { item -> item == oldItem }
-            if (newItem != null && !newItem.identical(oldItem)) {
+        val existing = HashSet<T>(editableList.size * 2)
+        for (index in editableList.indices) {
+            val oldItem = editableList[index]
+            existing.add(oldItem)
+            val newItem = newItems[oldItem] ?: continue
+            if (!newItem.identical(oldItem)) {
                 editableList[index] = newItem
             }
         }
         // Add new items
-        editableList.addAll(toAdd)
+        val toAdd = items.filter { item -> item !in existing }
+        if (toAdd.isNotEmpty()) editableList.addAll(toAdd)
     }
 
-    private fun assembleAllData(cls: Class<*>): List<Data> {
-        return allData.flatMap { (_, peerData) -> peerData.filter { d -> cls.isAssignableFrom(d.javaClass) } }
+    private fun assembleAllData(cls: Class<out Data>): List<Data> {
+        return index(cls).values.flatten()
+    }
+
+    private fun index(cls: Class<out Data>): LinkedHashMap<Peer, List<Data>> {
+        return classIndex.getOrPut(cls) {
+            val slices = LinkedHashMap<Peer, List<Data>>()
+            for ((peer, peerData) in allData) {
+                slices[peer] = slice(cls, peerData)
+            }
+            slices
+        }
+    }
+
+    private fun slice(cls: Class<*>, data: List<Data>): List<Data> {
+        return data.filter { d -> isAssignable(cls, d.javaClass) }
+    }
+
+    private fun isAssignable(cls: Class<*>, sub: Class<*>): Boolean {
+        return assignable.getOrPut(Pair(cls, sub)) { cls.isAssignableFrom(sub) }
+    }
+
+    /**
+     * Updates the slices of [peer] in the [classIndex].
+     *
+     * @param affectedClasses classes of objects that may have changed or null if any class may have changed
+     * @return indexed classes whose slices changed
+     */
+    private fun reindex(peer: Peer, affectedClasses: Collection<Class<*>>?): List<Class<out Data>> {
+        val peerData = allData[peer]
+        val changed = ArrayList<Class<out Data>>()
+        for ((cls, slices) in classIndex) {
+            if (affectedClasses != null && affectedClasses.none { a -> isAssignable(cls, a) || isAssignable(a, cls) }) continue
+            val oldSlice = slices[peer] ?: emptyList()
+            val newSlice = if (peerData == null) emptyList() else slice(cls, peerData)
+            if (oldSlice.size == newSlice.size && oldSlice.indices.all { i -> oldSlice[i] === newSlice[i] }) continue
+            if (peerData == null) slices.remove(peer) else slices[peer] = newSlice
+            changed.add(cls)
+        }
+        return changed
     }
 
     /**
@@ -223,47 +445,61 @@ class Cloud {
      * If [yankOthers] is true, previously pushed objects of the same class that are not part of [dataObjects] are yanked.
      */
     internal fun<T : Data> push(cls: Class<T>, dataObjects: Iterable<T>, owner:Any, yankOthers: Boolean) {
-        val localData = allData[localPeer]!!
-        val offlineList: MutableList<Data>
-        offlineList = if(yankOthers) {
-            ArrayList(localData.filter { d -> ownerMap[d] != owner || !cls.isAssignableFrom(d.javaClass) })
-        } else {
-            ArrayList(localData)
-        }
-        for(d in dataObjects) {
-            ownerMap[d] = owner
-            if(d in offlineList) {
-                val index = offlineList.indexOf(d)
-                offlineList[index] = d
+        synchronized(lock) {
+            val localData = allData[localPeer]!!
+            val offlineList: MutableList<Data>
+            offlineList = if(yankOthers) {
+                val (kept, yanked) = localData.partition { d -> ownerMap[d] != owner || !cls.isAssignableFrom(d.javaClass) }
+                yanked.forEach { d -> ownerMap.remove(d) }
+                ArrayList(kept)
             } else {
-                offlineList.add(d)
+                ArrayList(localData)
+            }
+            for(d in dataObjects) {
+                ownerMap[d] = owner
+                if(d in offlineList) {
+                    val index = offlineList.indexOf(d)
+                    offlineList[index] = d
+                } else {
+                    offlineList.add(d)
+                }
             }
+            allData[localPeer] = offlineList
+            notifyDataListeners(reindex(localPeer, listOf(cls)))
+            tcp?.dataUpdated(offlineList, listOf(cls))
         }
-        allData[localPeer] = offlineList
-        notifyDataListeners(listOf(cls))
-        tcp?.dataUpdated(offlineList, listOf(cls))
+        deliverNotifications()
         fireUpdate()
     }
 
     fun yankAll(cls: Class<out Data>?, owner: Any) {
-        val localData = allData[localPeer]!!
-        val dataToRemove = localData.filter { d -> matches(d, cls, owner) }
-        localData.removeAll(dataToRemove)
-        val affectedClasses =
-        if(cls != null) listOf(cls) else dataToRemove.map { d -> d.javaClass }.toSet()
-        notifyDataListeners(affectedClasses)
-        tcp?.dataUpdated(allData[localPeer]!!, affectedClasses)
+        synchronized(lock) {
+            val (dataToRemove, remaining) = allData[localPeer]!!.partition { d -> matches(d, cls, owner) }
+            allData[localPeer] = remaining
+            dataToRemove.forEach { d -> ownerMap.remove(d) }
+            val affectedClasses =
+            if(cls != null) listOf(cls) else dataToRemove.map { d -> d.javaClass }.toSet()
+            notifyDataListeners(reindex(localPeer, affectedClasses))
+            tcp?.dataUpdated(remaining, affectedClasses)
+        }
+        deliverNotifications()
         fireUpdate()
     }
 
-    internal fun remoteUpdate(peer: Peer, affectedClasses: Collection<*>, data: List<*>) {
+    /**
+     * @param affectedClasses classes of the objects that changed or null if [data] replaces all data of [peer]
+     */
+    internal fun remoteUpdate(peer: Peer, affectedClasses: Collection<*>?, data: List<*>) {
         val list = ArrayList<Data>()
         for (obj in data) {
             list.add(obj as Data)
         }
-        allData[peer] = list
-        @Suppress("UNCHECKED_CAST")
-        notifyDataListeners(affectedClasses as Collection<Class<out Data>>)
+        synchronized(lock) {
+            allData[peer] = list
+            @Suppress("UNCHECKED_CAST")
+            notifyDataListeners(reindex(peer, affectedClasses as Collection<Class<*>>?))
+        }
+        deliverNotifications()
         fireUpdate()
     }
 
@@ -274,43 +510,75 @@ class Cloud {
         return matchesClass && matchesOwner
     }
 
-    private fun notifyDataListeners(classes: Iterable<Class<out Data>>) {
-        for ((listenerCls, listeners) in dataListeners) {
-            if(classes.any { cls ->  listenerCls.isAssignableFrom(cls)}) {
-                listeners.forEach { it.run() }
-            }
+    /**
+     * Queues notifications for only the listeners registered for exactly the given classes, see [reindex].
+     * Must be called while holding the lock so that the snapshots and their order match the modifications.
+     */
+    private fun notifyDataListeners(changedClasses: Iterable<Class<out Data>>) {
+        for (cls in changedClasses) {
+            dataListeners[cls]?.forEach { listener -> notifications.add(listener()) }
         }
     }
 
-
-    internal fun getSynchronizedData(): List<SynchronizedData> {
-        return sData.map { (_, prop) -> prop.value }
+    /**
+     * Runs queued notifications in order. Must be called without holding the lock.
+     * If another thread is already draining the queue, it also runs the notifications queued by this thread.
+     * Listeners that modify the cloud therefore do not recurse; their notifications run after they return.
+     */
+    private fun deliverNotifications() {
+        synchronized(lock) {
+            if (delivering) return
+            delivering = true
+        }
+        while (true) {
+            val next = synchronized(lock) {
+                notifications.pollFirst() ?: run {
+                    delivering = false
+                    return
+                }
+            }
+            try {
+                next.run()
+            } catch (exc: Exception) {
+                logger.log(Level.WARNING, "Cloud listener failed", exc)
+            }
+        }
     }
 
 
-    fun write(file: File) {
-        ObjectOutputStream(file.outputStream()).use {
-            it.writeObject(getSynchronizedData())
+    internal fun getSynchronizedData(): List<SynchronizedData> {
+        synchronized(lock) {
+            return ArrayList(sValues.values)
         }
     }
 
-    fun read(file: File, isDataOlder: Boolean) {
-        val task = Executors.newFixedThreadPool(1) { r -> DeserializerThread(this, localPeer, r)}.submit(Callable {
-            var readList: List<*>? = null
-            ObjectInputStream(file.inputStream()).use {
-                readList = it.readObject() as List<*>
-            }
-            readList
-        })
-        val objects = task.get() ?: throw IOException()
-        for (sObj in objects) {
-            val transformed = (sObj as SynchronizedData).fromFile()
-            transformed?.let { remoteUpdateSynchronized(transformed, false, isDataOlder, logger) }
-        }
+
+    /**
+     * Restores the synchronized data saved in [directory] and keeps it up to date from now on.
+     *
+     * @param legacyFile single-file state written by earlier versions, imported if [directory] contains no snapshot yet
+     * @param isDataOlder whether the restored data should lose conflicts against data already in the cloud
+     */
+    @Throws(IOException::class)
+    fun openJournal(directory: File, legacyFile: File?, isDataOlder: Boolean): CloudJournal {
+        if (journal != null) throw IllegalStateException("journal already open")
+        val journal = CloudJournal(this, directory)
+        journal.recover(legacyFile, isDataOlder)
+        journal.start()
+        this.journal = journal
+        return journal
     }
 
     fun peerDisconnected(peer: Peer) {
-        allData.remove(peer)
+        val lost = synchronized(lock) { allData[peer] } ?: emptyList()
+        onPeerLost.forEach { listener -> listener(peer, lost) }
+        synchronized(lock) {
+            allData.remove(peer)
+            notifyDataListeners(reindex(peer, null))
+        }
+        deliverNotifications()
+        multicast?.forget(peer)
+        peer.health.disconnected()
         fireUpdate()
     }
 
@@ -319,3 +587,9 @@ class Cloud {
     }
 
 }
+
+
+/**
+ * Point-in-time view of the data in a [Cloud], see [Cloud.snapshot].
+ */
+class CloudState(val synchronized: List<SynchronizedData>, val data: Map<Peer, List<Data>>)
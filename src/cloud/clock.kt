@@ -0,0 +1,83 @@
+package cloud
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Estimates the offset between the clock of a remote peer and the local clock as well as the network round trip time.
+ *
+ * Estimates are obtained NTP-style from probes sent over the TCP connection.
+ * Each probe yields four timestamps: t0 (local send), t1 (remote receive), t2 (remote send), t3 (local receive).
+ * Of the most recent samples, the one with the lowest round trip time is trusted most
+ * because its offset is least affected by asymmetric queuing delays.
+ *
+ * All times are in milliseconds as returned by [System.currentTimeMillis].
+ */
+class PeerClock
+{
+    companion object {
+        private const val SAMPLES = 8
+        private val clocks = ConcurrentHashMap<String, PeerClock>()
+        private val LOCAL = PeerClock().also { it.isSynchronized = true }
+
+        /**
+         * Returns the clock estimate of [peer]. Peers are identified by their ID.
+         */
+        @JvmStatic
+        fun of(peer: Peer): PeerClock {
+            if (peer.id == Peer.getLocal().id) return LOCAL
+            return clocks.computeIfAbsent(peer.id) { PeerClock() }
+        }
+    }
+
+    private class Sample(val offset: Double, val roundTripTime: Long)
+
+    private val samples = ArrayList<Sample>()
+
+    /** Remote clock minus local clock in milliseconds */
+    @Volatile var offset: Double = 0.0
+        private set
+    /** Network round trip time in milliseconds, smoothed */
+    @Volatile var roundTripTime: Double = 0.0
+        private set
+    /** Whether at least one probe has been answered */
+    @Volatile var isSynchronized = false
+        private set
+
+
+    /**
+     * Converts a timestamp taken on the remote peer to the local clock.
+     */
+    fun toLocalTime(remoteTime: Long): Long {
+        return remoteTime - Math.round(offset)
+    }
+
+    /**
+     * Converts a local timestamp to the clock of the remote peer.
+     */
+    fun toRemoteTime(localTime: Long): Long {
+        return localTime + Math.round(offset)
+    }
+
+    /**
+     * One-way network latency, estimated as half the round trip time.
+     */
+    fun latency(): Double {
+        return roundTripTime / 2
+    }
+
+    @Synchronized
+    internal fun addSample(t0: Long, t1: Long, t2: Long, t3: Long) {
+        val roundTripTime = (t3 - t0) - (t2 - t1)
+        if (roundTripTime < 0) return
+        val offset = ((t1 - t0) + (t2 - t3)) / 2.0
+        samples.add(Sample(offset, roundTripTime))
+        if (samples.size > SAMPLES) samples.removeAt(0)
+        this.offset = samples.minBy { it.roundTripTime }!!.offset
+        this.roundTripTime = if (!isSynchronized) roundTripTime.toDouble() else 0.875 * this.roundTripTime + 0.125 * roundTripTime
+        isSynchronized = true
+    }
+
+    override fun toString(): String {
+        return if (isSynchronized) "offset ${"%.1f".format(offset)} ms, RTT ${"%.1f".format(roundTripTime)} ms" else "not synchronized"
+    }
+}
@@ -48,4 +48,21 @@ abstract class SynchronizedData : Serializable {
     open fun fromFile(): SynchronizedData? {
         return this
     }
-}
\ No newline at end of file
+}
+
+/**
+ * A change to a [SynchronizedData] object that is sent to other peers instead of the whole object,
+ * see [Cloud.pushOperation].
+ *
+ * Peers may receive operations in different orders. To keep all peers in sync,
+ * operations on the same class must commute and applying an operation twice must have no further effect.
+ *
+ * @param target class of the data object this operation applies to
+ */
+abstract class SynchronizedOperation<T : SynchronizedData>(val target: Class<T>) : Serializable {
+
+    /**
+     * Returns the updated version of [data]. [data] must not be modified.
+     */
+    abstract fun applyTo(data: T): T
+}
@@ -1,6 +1,7 @@
 package cloud
 
 import java.io.*
+import java.util.zip.CRC32
 
 
 /**
@@ -12,6 +13,7 @@ class CloudFile(file: File) : Data() {
     private var path: String = file.path
     private var size: Long? = null  // read upon serialization
     private var isDir: Boolean? = null // read upon serialization
+    private var modified: Long? = null // read upon serialization
 
     @Transient private var origin: Peer = Peer.getLocal()
     @Transient private var cloud: Cloud? = null
@@ -21,6 +23,7 @@ class CloudFile(file: File) : Data() {
         stream.writeUTF(path)
         stream.writeLong(length())
         stream.writeBoolean(isDirectory())
+        stream.writeLong(lastModified())
         stream.writeObject(origin)
     }
 
@@ -28,6 +31,7 @@ class CloudFile(file: File) : Data() {
         path = stream.readUTF()
         size = stream.readLong()
         isDir = stream.readBoolean()
+        modified = stream.readLong()
         origin = stream.readObject() as Peer
         val thread = Thread.currentThread() as DeserializerThread
         cloud = thread.cloud
@@ -69,6 +73,17 @@ class CloudFile(file: File) : Data() {
         return size!!
     }
 
+    /**
+     * Returns the time of the last modification in milliseconds since the epoch, as reported by the origin device.
+     * Like [length], this value is available even if the hosting peer is not.
+     */
+    fun lastModified(): Long {
+        if(modified == null && originatesHere()) {
+            modified = File(path).lastModified()
+        }
+        return modified!!
+    }
+
     /**
      * Opens an `InputStream` for this file.
      *
@@ -88,6 +103,41 @@ class CloudFile(file: File) : Data() {
         }
     }
 
+    /**
+     * Opens an `InputStream` for a part of this file.
+     *
+     * @param offset position of the first byte to read
+     * @param length number of bytes to read or -1 to read until the end of the file
+     * @throws IOException
+     * if the hosting peer is not available or the connection is
+     * interrupted
+     */
+    @Throws(IOException::class, UnsupportedOperationException::class)
+    fun openStream(offset: Long, length: Long): InputStream {
+        return if(originatesHere()) {
+            openRange(File(path), offset, length)
+        } else {
+            cloud!!.openStream(origin, getPath(), offset, length)
+        }
+    }
+
+    /**
+     * Computes CRC32 checksums of consecutive chunks of this file on the origin device.
+     * The last chunk may be shorter than [chunkSize].
+     *
+     * @throws IOException
+     * if the hosting peer is not available or the connection is
+     * interrupted
+     */
+    @Throws(IOException::class)
+    fun checksums(chunkSize: Int): LongArray {
+        return if(originatesHere()) {
+            chunkChecksums(File(path), chunkSize)
+        } else {
+            cloud!!.requestChecksums(origin, getPath(), chunkSize)
+        }
+    }
+
     /**
      * A file originates here if its associated peer is the local peer.
      *
@@ -128,4 +178,57 @@ class CloudFile(file: File) : Data() {
         result = 31 * result + path.hashCode()
         return result
     }
-}
\ No newline at end of file
+}
+
+
+internal fun openRange(file: File, offset: Long, length: Long): InputStream {
+    val stream = FileInputStream(file)
+    stream.channel.position(offset)
+    return if (length < 0) stream else RangeInputStream(stream, length)
+}
+
+
+internal fun chunkChecksums(file: File, chunkSize: Int): LongArray {
+    val chunkCount = ((file.length() + chunkSize - 1) / chunkSize).toInt()
+    val result = LongArray(chunkCount)
+    val buffer = ByteArray(chunkSize)
+    FileInputStream(file).use { stream ->
+        for (index in 0 until chunkCount) {
+            val n = stream.readNBytes(buffer, 0, chunkSize)
+            result[index] = checksum(buffer, n)
+        }
+    }
+    return result
+}
+
+
+fun checksum(bytes: ByteArray, length: Int): Long {
+    val crc = CRC32()
+    crc.update(bytes, 0, length)
+    return crc.value
+}
+
+
+/**
+ * Reads at most [remaining] bytes from [stream].
+ */
+private class RangeInputStream(private val stream: InputStream, private var remaining: Long) : InputStream()
+{
+    override fun read(): Int {
+        if (remaining <= 0) return -1
+        val result = stream.read()
+        if (result >= 0) remaining--
+        return result
+    }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (remaining <= 0) return -1
+        val n = stream.read(b, off, minOf(len.toLong(), remaining).toInt())
+        if (n > 0) remaining -= n
+        return n
+    }
+
+    override fun close() {
+        stream.close()
+    }
+}
@@ -0,0 +1,109 @@
+package cloud
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Tracks the liveness of a remote peer from the arrival times of its messages.
+ *
+ * The [suspicion] level is computed like in an accrual failure detector:
+ * assuming exponentially distributed inter-arrival times, it is `-log10` of the probability that the peer is still alive
+ * but has not sent anything for the elapsed time. A suspicion of 1 therefore means a 10% chance of a false alarm, 3 means 0.1%.
+ *
+ * Every message counts as a sign of life, but the mean interval is never assumed to be shorter than the heartbeat interval, see [Cloud.heartbeatInterval].
+ * Otherwise a burst of messages would make the usual pause between two heartbeats look like a failure.
+ * All times are in milliseconds as returned by [System.currentTimeMillis].
+ */
+class PeerHealth
+{
+    companion object {
+        private const val SAMPLES = 32
+        private val LOG10_E = Math.log10(Math.E)
+        private val healths = ConcurrentHashMap<String, PeerHealth>()
+
+        /**
+         * Returns the health record of [peer]. Peers are identified by their ID.
+         */
+        @JvmStatic
+        fun of(peer: Peer): PeerHealth {
+            return healths.computeIfAbsent(peer.id) { PeerHealth() }
+        }
+    }
+
+    private val intervals = ArrayList<Long>()
+    private var lastMessage: Long = 0  // arrival of the last complete message header, 0 if never
+    private var minInterval: Long = 1  // expected time between heartbeats
+
+    /** Time when the last message or part of a message was received, 0 if never */
+    @Volatile var lastHeard: Long = 0
+        private set
+    /** Time between the last message and the failure being declared, `null` if the peer has not failed yet */
+    @Volatile var detectionTime: Long? = null
+        private set
+    /** Number of times the peer was declared failed */
+    @Volatile var failures = 0
+        private set
+
+
+    /**
+     * Returns the current suspicion level, 0 if the peer has just been heard from.
+     */
+    @Synchronized
+    fun suspicion(now: Long = System.currentTimeMillis()): Double {
+        if (lastHeard == 0L || intervals.isEmpty()) return 0.0
+        val meanInterval = maxOf(minInterval.toDouble(), intervals.average())
+        return (now - lastHeard) / meanInterval * LOG10_E
+    }
+
+    @Synchronized
+    internal fun heard(now: Long = System.currentTimeMillis()) {
+        if (lastMessage != 0L) {
+            intervals.add(now - lastMessage)
+            if (intervals.size > SAMPLES) intervals.removeAt(0)
+        }
+        lastMessage = now
+        lastHeard = now
+    }
+
+    /**
+     * Records that part of a long message arrived. This keeps the peer alive during large transfers without adding an interval sample.
+     */
+    @Synchronized
+    internal fun receiving(now: Long = System.currentTimeMillis()) {
+        lastHeard = now
+    }
+
+    /**
+     * Starts a new connection. Arrival statistics of an earlier connection are discarded.
+     *
+     * @param heartbeatInterval interval in which the peer sends heartbeats while idle
+     */
+    @Synchronized
+    internal fun connected(heartbeatInterval: Long, now: Long = System.currentTimeMillis()) {
+        minInterval = maxOf(1L, heartbeatInterval)
+        intervals.clear()
+        lastMessage = now
+        lastHeard = now
+    }
+
+    /**
+     * Discards the arrival statistics of a closed connection.
+     * The failure history is kept so that it remains visible after the peer was disconnected.
+     */
+    @Synchronized
+    internal fun disconnected() {
+        intervals.clear()
+        lastMessage = 0
+        lastHeard = 0
+    }
+
+    @Synchronized
+    internal fun failed(now: Long = System.currentTimeMillis()) {
+        detectionTime = now - lastHeard
+        failures++
+    }
+
+    override fun toString(): String {
+        val suspicion = "suspicion ${"%.2f".format(suspicion())}"
+        return detectionTime?.let { "$suspicion, $failures failure(s), last detected after $it ms" } ?: suspicion
+    }
+}
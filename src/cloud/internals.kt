@@ -1,12 +1,14 @@
 package cloud
 
 import javafx.application.Platform
-import javafx.collections.FXCollections
-import javafx.collections.ObservableList
 import java.io.*
 import java.net.*
 import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Logger
+import java.util.zip.Deflater
+import java.util.zip.DeflaterOutputStream
+import java.util.zip.InflaterInputStream
 
 
 internal class CloudMulticast(
@@ -19,14 +21,23 @@ internal class CloudMulticast(
         private val autoConnect: Boolean,
         private val broadcastInterval: Long
 ) {
+    companion object {
+        /** While the set of peers is stable, the beacon interval doubles up to this multiple of [broadcastInterval] */
+        private const val MAX_BACKOFF = 16
+    }
+
     val address = InetSocketAddress(InetAddress.getByName(host), port)
     private val socket = MulticastSocket(port)
-    private val peers = ArrayList<Peer>(listOf(cloud.localPeer))
+    private val peers = HashMap<String, Peer>()  // remote peers by ID, guarded by itself
     private val maxPacketLength = 1024
     private val receivedPacket = DatagramPacket(ByteArray(maxPacketLength), maxPacketLength)
     private val connectionTime = System.nanoTime()
 
-    var pingService: ScheduledFuture<*>? = null
+    private val beaconService: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+    private var nextBeacon: ScheduledFuture<*>? = null
+    private var interval = broadcastInterval
+    private var lastMembership = 0
+    private var converged = false  // whether all beacons received since the last one agreed on the set of peers
     var receiveService: Future<*>? = null
 
 
@@ -38,57 +49,119 @@ internal class CloudMulticast(
 
 
     private fun receiveSinglePacket() {
-        while (true) {
-            socket.receive(receivedPacket)  // also receives own messages
-            val content = String(receivedPacket.data!!, 0, receivedPacket.length)
-            if (content.startsWith("Cyclone;")) {
-                val parts = content.split(";")
-                val id = parts[2]
-                val name = parts[3]
-                if (peers.none { p -> p.id == id }) {
-                    val tcpPort = parts[1].toInt()
-                    val peer = Peer(false, name, receivedPacket.address.hostAddress, id)
-                    val otherTime = parts[4].toLong()
-                    val isOlder = otherTime < connectionTime
-                    peers.add(peer)
-                    Platform.runLater { cloud.peers.add(peer) }
-                    logger?.info("<- Received ping from $name ($id). ${if (isOlder) "It is older." else "I am older"}")
-                    if (isOlder && autoConnect) {
-                        tcp.connect(peer, InetSocketAddress(receivedPacket.address, tcpPort))
-                    }
-                } else {
-                    logger?.finest("<- Ignoring ping from $name ($id) which is already registered.")
-                }
-            } else {  // Unknown message
-                logger?.finest("<- Received unknown message from ${receivedPacket.address}:${receivedPacket.port} with length ${receivedPacket.length}. Content:")
-                logger?.finest(content)
-            }
+        socket.receive(receivedPacket)  // also receives own messages
+        val beacon = Beacon.read(receivedPacket.data, receivedPacket.length)
+        if (beacon == null) {
+            logger?.finest("<- Ignoring unknown message from ${receivedPacket.address}:${receivedPacket.port} with length ${receivedPacket.length}")
+            return
+        }
+        if (beacon.id == cloud.localPeer.id) return
+
+        val peer = synchronized(peers) {
+            if (beacon.id in peers) null
+            else Peer(false, beacon.name, receivedPacket.address.hostAddress, beacon.id).also { peers[beacon.id] = it }
+        }
+        if (peer == null) {
+            logger?.finest("<- Ignoring beacon from ${beacon.name} (${beacon.id}) which is already registered.")
+            if (beacon.membership != membershipHash()) membershipDiffers()
+            return
+        }
+
+        val isOlder = beacon.connectionTime < connectionTime
+        Platform.runLater { if (peer !in cloud.peers) cloud.peers.add(peer) }
+        logger?.info("<- Received beacon from ${beacon.name} (${beacon.id}). ${if (isOlder) "It is older." else "I am older"}")
+        announce()
+        if (isOlder && autoConnect) {
+            tcp.connect(peer, InetSocketAddress(receivedPacket.address, beacon.tcpPort))
         }
     }
 
     fun startReceiving() {
         receiveService = Executors.newFixedThreadPool(1).submit(Runnable {
-            while (true) {
-                receiveSinglePacket()
+            while (!socket.isClosed) {
+                try {
+                    receiveSinglePacket()
+                } catch (exc: IOException) {
+                    if (!socket.isClosed) logger?.warning("Failed to receive multicast packet: $exc")
+                }
             }
         })
     }
 
-    private fun send(string: String) {
-        logger?.finest("-> Sending ping")
-        val buffer = string.toByteArray()
-        val packet = DatagramPacket(buffer, buffer.size, address)
-        socket.send(packet)
+    /**
+     * Hash of the IDs of all known peers including the local one.
+     * Peers that know each other send the same hash.
+     */
+    private fun membershipHash(): Int {
+        synchronized(peers) {
+            return peers.keys.sumBy { id -> id.hashCode() } + cloud.localPeer.id.hashCode()
+        }
+    }
+
+    private fun sendBeacon() {
+        val membership = membershipHash()
+        val beacon = Beacon(tcpPort, connectionTime, membership, cloud.localPeer.id, cloud.localPeer.name)
+        try {
+            logger?.finest("-> Sending beacon")
+            val buffer = beacon.toByteArray()
+            socket.send(DatagramPacket(buffer, buffer.size, address))
+        } catch (exc: IOException) {
+            logger?.warning("Failed to send beacon: $exc")
+        }
+        synchronized(peers) {
+            interval = if (converged && membership == lastMembership) minOf(interval * 2, broadcastInterval * MAX_BACKOFF) else broadcastInterval
+            lastMembership = membership
+            converged = true
+            scheduleBeacon(interval)
+        }
+    }
+
+    private fun scheduleBeacon(delay: Long) {
+        nextBeacon?.cancel(false)
+        nextBeacon = beaconService.schedule(Runnable { sendBeacon() }, delay, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Sends a beacon immediately and returns to the base interval. Called when the set of known peers changes.
+     */
+    private fun announce() {
+        synchronized(peers) {
+            interval = broadcastInterval
+            converged = false
+            scheduleBeacon(0)
+        }
+    }
+
+    /**
+     * Another peer knows a different set of peers, so beacons are sent at the base interval until they agree.
+     * No beacon is sent right away to avoid peers triggering each other.
+     */
+    private fun membershipDiffers() {
+        synchronized(peers) {
+            converged = false
+            if (interval > broadcastInterval) {
+                interval = broadcastInterval
+                scheduleBeacon(broadcastInterval)
+            }
+        }
     }
 
     fun startPinging() {
-        val helloMessage = "Cyclone;$tcpPort;${cloud.localPeer.id};${cloud.localPeer.name};$connectionTime"
-        pingService = Executors.newScheduledThreadPool(1).scheduleAtFixedRate(Runnable { send(helloMessage) }, 0, broadcastInterval, TimeUnit.MILLISECONDS)
+        announce()
     }
 
 
+    /**
+     * Removes a peer whose connection was lost so that it is connected again once its beacons are received.
+     */
+    fun forget(peer: Peer) {
+        val removed = synchronized(peers) { peers.remove(peer.id) != null }
+        if (removed) announce()
+    }
+
     fun disconnect() {
-        pingService?.cancel(false)
+        nextBeacon?.cancel(false)
+        beaconService.shutdownNow()
         receiveService?.cancel(true)
         socket.leaveGroup(address, null)
         socket.close()
@@ -97,11 +170,57 @@ internal class CloudMulticast(
 }
 
 
+/**
+ * Multicast discovery message.
+ * Beacons start with a magic number and protocol version so that unrelated traffic on the multicast group is discarded without decoding.
+ *
+ * @param membership hash of the IDs of all peers known to the sender, see [CloudMulticast.membershipHash]
+ */
+private class Beacon(val tcpPort: Int, val connectionTime: Long, val membership: Int, val id: String, val name: String)
+{
+    companion object {
+        private const val MAGIC = 0x43594331  // "CYC1"
+        private const val VERSION = 1
+
+        /**
+         * Decodes a beacon, returns `null` if the data is not a beacon of this protocol version.
+         */
+        fun read(data: ByteArray, length: Int): Beacon? {
+            if (length < 6) return null
+            val input = DataInputStream(ByteArrayInputStream(data, 0, length))
+            return try {
+                if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION) return null
+                Beacon(input.readUnsignedShort(), input.readLong(), input.readInt(), input.readUTF(), input.readUTF())
+            } catch (exc: IOException) {
+                null
+            }
+        }
+    }
+
+    fun toByteArray(): ByteArray {
+        val buffer = ByteArrayOutputStream(64)
+        DataOutputStream(buffer).use { out ->
+            out.writeInt(MAGIC)
+            out.writeByte(VERSION)
+            out.writeShort(tcpPort)
+            out.writeLong(connectionTime)
+            out.writeInt(membership)
+            out.writeUTF(id)
+            out.writeUTF(name)
+        }
+        return buffer.toByteArray()
+    }
+}
+
+
 internal class CloudTCP(val cloud: Cloud, val logger: Logger?) {
     val serverSocket = ServerSocket(0)
-    val connections: ObservableList<CloudTCPConnection> = FXCollections.observableArrayList()
+    val connections: MutableList<CloudTCPConnection> = CopyOnWriteArrayList()  // accessed from accept, input and multicast threads
 
     var acceptService: Future<*>? = null
+    /** Runs clock probes, heartbeats and failure detection for all connections */
+    val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor()
+    private val failureDetection = scheduler.scheduleWithFixedDelay(Runnable { detectFailures() }, cloud.heartbeatInterval, cloud.heartbeatInterval, TimeUnit.MILLISECONDS)
 
     private val connectionTime = System.nanoTime()
 
@@ -111,7 +230,13 @@ internal class CloudTCP(val cloud: Cloud, val logger: Logger?) {
         }
     }
 
-    fun dataUpdated(localData: ArrayList<Data>, affectedClasses: Collection<Class<out Data>>) {
+    fun synchronizedOperation(operation: SynchronizedOperation<*>) {
+        for (connection in connections) {
+            connection.sendSyncOperation(operation)
+        }
+    }
+
+    fun dataUpdated(localData: List<Data>, affectedClasses: Collection<Class<out Data>>) {
         for (connection in connections) {
             connection.sendUpdate(localData, affectedClasses)
         }
@@ -150,10 +275,33 @@ internal class CloudTCP(val cloud: Cloud, val logger: Logger?) {
         connections.add(connection)
         connection.sendEverything()
         connection.startHandlingInput()
+        connection.startClockProbes(scheduler)
+        connection.startHeartbeats(scheduler, cloud.heartbeatInterval)
         cloud.fireUpdate()
     }
 
+    /**
+     * Closes connections to peers that have been silent for too long.
+     * Peers usually send heartbeats, so silence indicates that the peer crashed or its network dropped
+     * even if the socket still appears connected.
+     */
+    private fun detectFailures() {
+        val now = System.currentTimeMillis()
+        for (connection in connections) {
+            val health = connection.peer.health
+            val silence = now - health.lastHeard
+            val suspicion = health.suspicion(now)
+            if (suspicion > cloud.suspicionThreshold || silence > cloud.failureTimeout) {
+                logger?.warning("${connection.peer} has been silent for $silence ms (suspicion ${"%.2f".format(suspicion)}). Closing connection.")
+                health.failed(now)
+                connection.close()
+            }
+        }
+    }
+
     fun disconnect() {
+        failureDetection.cancel(false)
+        scheduler.shutdownNow()
         serverSocket.close()
         for (connection in connections) {
             connection.close()
@@ -169,26 +317,68 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
     val peer: Peer
     val peerConnectionTime: Long
     val isPeerOlder: Boolean
+    /** Whether both sides agreed to compress data messages and suitable file transfers */
+    val compression: Boolean
+    val traffic = TrafficStats()
 
     var inputService: Future<*>? = null
     val senderThread: ExecutorService = Executors.newFixedThreadPool(1)
+    private var clockProbes: ScheduledFuture<*>? = null
+
+    private var heartbeats: ScheduledFuture<*>? = null
 
     var sharedSData: List<SynchronizedData>? = null
 
     init {
+        socket.tcpNoDelay = true  // messages are small and flushed individually, do not wait to coalesce them
         outputStream.writeUTF(cloud.localPeer.id)
         outputStream.writeUTF(cloud.localPeer.name)
         outputStream.writeLong(localConnectionTime)
+        outputStream.writeUTF(if (cloud.compressionEnabled) "deflate" else "none")
         outputStream.flush()
 
         val id = inputStream.readUTF()
         val name = inputStream.readUTF()
         peerConnectionTime = inputStream.readLong()
+        compression = cloud.compressionEnabled && inputStream.readUTF() == "deflate"
         peer = Peer(false, name, socket.inetAddress.hostAddress, id)
         peer.socketAddress = InetSocketAddress(socket.inetAddress, socket.port)
         isPeerOlder = peerConnectionTime < localConnectionTime
 
-        logger?.info("Pleasantries exchanged with $peer")
+        logger?.info("Pleasantries exchanged with $peer, compression ${if (compression) "on" else "off"}")
+    }
+
+    /**
+     * Serializes [objects] into a single block that is compressed if [compression] was negotiated.
+     * Must be called from the [senderThread].
+     */
+    private fun writePayload(type: String, vararg objects: Any?) {
+        val buffer = ByteArrayOutputStream()
+        ObjectOutputStream(buffer).use { out -> objects.forEach { out.writeObject(it) } }
+        val raw = buffer.toByteArray()
+        val payload = if (compression) deflate(raw) else raw
+        outputStream.writeUTF(type)
+        outputStream.writeInt(payload.size)
+        outputStream.write(payload)
+        outputStream.flush()
+        traffic.record(type, raw.size.toLong(), payload.size.toLong())
+    }
+
+    /**
+     * Reads a block written by [writePayload] of the remote peer.
+     * The returned stream must be read on this thread so that objects can be deserialized.
+     */
+    private fun readPayload(): ObjectInputStream {
+        val payload = ByteArray(inputStream.readInt())
+        var offset = 0
+        while (offset < payload.size) {  // large payloads can take longer than the failure timeout
+            val length = minOf(PAYLOAD_CHUNK, payload.size - offset)
+            inputStream.readFully(payload, offset, length)
+            offset += length
+            peer.health.receiving()
+        }
+        val stream = if (compression) InflaterInputStream(ByteArrayInputStream(payload)) else ByteArrayInputStream(payload)
+        return ObjectInputStream(stream)
     }
 
     fun sendEverything() {
@@ -197,19 +387,21 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
         if(senderThread.isShutdown) logger?.warning("Cannot send all data to $peer because thread is shut down")
         senderThread.submit {
             logger?.fine("Sending all data to $peer: ${sData.size} synchronized, ${data.size} owned.")
-            outputStream.writeUTF("all")
-            outputStream.writeObject(sData)
-            outputStream.writeObject(data)
-            outputStream.flush()
+            writePayload("all", sData, data)
         }
     }
 
     fun sendSyncUpdate(data: SynchronizedData) {
         senderThread.submit(Runnable {
             logger?.fine("Sending synchronized to $peer: $data")
-            outputStream.writeUTF("s")
-            outputStream.writeObject(data)
-            outputStream.flush()
+            writePayload("s", data)
+        })
+    }
+
+    fun sendSyncOperation(operation: SynchronizedOperation<*>) {
+        senderThread.submit(Runnable {
+            logger?.fine("Sending operation to $peer: $operation")
+            writePayload("o", operation)
         })
     }
 
@@ -218,43 +410,110 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
         val classNames = ArrayList(affectedClasses)
         senderThread.submit {
             logger?.fine("Sending data of class $affectedClasses to $peer: $copiedData")
-            outputStream.writeUTF("d")
-            outputStream.writeObject(classNames)
-            outputStream.writeObject(copiedData)
-            outputStream.flush()
+            writePayload("d", classNames, copiedData)
         }
     }
 
-    fun openFileStream(path: String): InputStream {
+    fun openFileStream(path: String, offset: Long, length: Long): InputStream {
         val receiver = ServerSocket(0)
         senderThread.submit(Runnable {
-            logger?.info("Sending file request to $peer: $path")
+            logger?.info("Sending file request to $peer: $path [$offset, $length]")
             outputStream.writeUTF("f")
             outputStream.writeUTF(path)
+            outputStream.writeLong(offset)
+            outputStream.writeLong(length)
             outputStream.writeInt(receiver.localPort)
             outputStream.flush()
         })
         val remote = receiver.accept()
+        receiver.close()
         val stream = remote.getInputStream()
-        return stream
+        val compressed = stream.read() == 1
+        return if (compressed) InflaterInputStream(stream) else stream
 //        val buffer = ByteArrayOutputStream(fileSize.toInt())
 //        stream.transferTo(buffer)
 //        return ByteArrayInputStream(buffer.toByteArray())
     }
 
+    /**
+     * Sends a clock probe. The timestamp is taken right before writing so queuing in the sender thread does not count.
+     */
+    fun sendClockProbe() {
+        senderThread.submit(Runnable {
+            outputStream.writeUTF("p")
+            outputStream.writeLong(System.currentTimeMillis())
+            outputStream.flush()
+        })
+    }
+
+    /**
+     * Sends a burst of clock probes to obtain a first estimate quickly, then probes periodically.
+     */
+    fun startClockProbes(service: ScheduledExecutorService) {
+        for (i in 1..CLOCK_PROBE_BURST) {
+            service.schedule(Runnable { sendClockProbe() }, i * 100L, TimeUnit.MILLISECONDS)
+        }
+        clockProbes = service.scheduleWithFixedDelay(Runnable { sendClockProbe() }, CLOCK_PROBE_INTERVAL, CLOCK_PROBE_INTERVAL, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Sends an empty message every [interval] milliseconds so that the remote peer can detect failures of this peer.
+     */
+    fun startHeartbeats(service: ScheduledExecutorService, interval: Long) {
+        heartbeats = service.scheduleWithFixedDelay(Runnable {
+            senderThread.submit(Runnable {
+                outputStream.writeUTF("h")
+                outputStream.flush()
+            })
+        }, interval, interval, TimeUnit.MILLISECONDS)
+    }
+
+    /**
+     * Sends [payload] to the handler registered for [channel] by the remote peer.
+     * The bytes are written as they are, without serialization or compression.
+     */
+    fun sendMessage(channel: String, payload: ByteArray) {
+        senderThread.submit(Runnable {
+            outputStream.writeUTF("e")
+            outputStream.writeUTF(channel)
+            outputStream.writeInt(payload.size)
+            outputStream.write(payload)
+            outputStream.flush()
+            traffic.record("e", payload.size.toLong(), payload.size.toLong())
+        })
+    }
+
+    fun requestChecksums(path: String, chunkSize: Int): LongArray {
+        val receiver = ServerSocket(0)
+        senderThread.submit(Runnable {
+            logger?.info("Sending checksum request to $peer: $path")
+            outputStream.writeUTF("c")
+            outputStream.writeUTF(path)
+            outputStream.writeInt(chunkSize)
+            outputStream.writeInt(receiver.localPort)
+            outputStream.flush()
+        })
+        receiver.accept().use { remote ->
+            receiver.close()
+            val stream = DataInputStream(BufferedInputStream(remote.getInputStream()))
+            val count = stream.readInt()
+            if (count < 0) throw IOException("$peer failed to compute checksums of $path")
+            return LongArray(count) { stream.readLong() }
+        }
+    }
+
     fun handleSingleInput() {
         val objType = inputStream.readUTF()
-        if (objType == "all") {
+        peer.health.heard()
+        if (objType == "h") {  // heartbeat, nothing to do
+        } else if (objType == "all") {
             try {
-                val sData = inputStream.readObject() as List<*>
-                val data = inputStream.readObject() as List<*>
+                val payload = readPayload()
+                val sData = payload.readObject() as List<*>
+                val data = payload.readObject() as List<*>
                 logger?.fine("Received data from $peer: ${sData.size} synchronized, ${data.size} owned.")
-                // Update data
-                val classes = HashSet<Any>()
-                for (obj in data) {
-                    classes.add(obj!!.javaClass)
-                }
-                cloud.remoteUpdate(peer, classes, data)
+                // Update data, replacing everything previously received from the peer
+                cloud.remoteUpdate(peer, null, data)
                 // Update synchronized
                 for (sObj in sData) {
                     cloud.remoteUpdateSynchronized(sObj as SynchronizedData, false, isPeerOlder, logger)
@@ -264,16 +523,26 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
             }
         } else if (objType == "s") {  // synchronized data update
             try {
-                val data = inputStream.readObject() as SynchronizedData
+                val data = readPayload().readObject() as SynchronizedData
                 logger?.fine("Received synchronized data from $peer: $data")
                 cloud.remoteUpdateSynchronized(data, true, false, logger)
             } catch (exc: ClassNotFoundException) {
                 logger?.warning("Failed to receive synchronized data from $peer: $exc")
             }
+        } else if (objType == "o") {  // operation on synchronized data
+            try {
+                @Suppress("UNCHECKED_CAST")
+                val operation = readPayload().readObject() as SynchronizedOperation<SynchronizedData>
+                logger?.fine("Received operation from $peer: $operation")
+                cloud.applyOperation(operation, false)
+            } catch (exc: ClassNotFoundException) {
+                logger?.warning("Failed to receive synchronized operation from $peer: $exc")
+            }
         } else if (objType == "d") {  // owned data update
             try {
-                val affectedClasses = inputStream.readObject() as List<*>
-                val data = inputStream.readObject() as List<*>
+                val payload = readPayload()
+                val affectedClasses = payload.readObject() as List<*>
+                val data = payload.readObject() as List<*>
                 logger?.fine("Received $affectedClasses update from $peer: $data")
                 cloud.remoteUpdate(peer, affectedClasses, data)
             } catch (exc: ClassNotFoundException) {
@@ -281,17 +550,67 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
             }
         } else if (objType == "f") {  // file streaming request
             val path = inputStream.readUTF()
+            val offset = inputStream.readLong()
+            val length = inputStream.readLong()
             val remotePort = inputStream.readInt()
-            logger?.info("Received streaming request by $peer for file $path")
+            logger?.info("Received streaming request by $peer for file $path [$offset, $length]")
             // TODO check access rights
             Thread(Runnable {
-                val fileStream = FileInputStream(path)
+                val fileStream = openRange(File(path), offset, length)
                 val fileSocket = Socket(socket.inetAddress, remotePort)
-                fileStream.use {
-                    fileStream.transferTo(fileSocket.getOutputStream())
+                val wire = CountingOutputStream(fileSocket.getOutputStream())
+                val compressFile = compression && isCompressible(path)
+                wire.write(if (compressFile) 1 else 0)
+                val deflater = Deflater(Deflater.BEST_SPEED)
+                val out = if (compressFile) DeflaterOutputStream(wire, deflater, 64 * 1024) else wire
+                val rawBytes = fileStream.use {
+                    fileStream.transferTo(out)
+                }
+                out.flush()
+                out.close()
+                deflater.end()
+                traffic.record("f", rawBytes, wire.count - 1)
+            }).start()
+        } else if (objType == "p") {  // clock probe
+            val receiveTime = System.currentTimeMillis()
+            val probeTime = inputStream.readLong()
+            senderThread.submit(Runnable {
+                outputStream.writeUTF("q")
+                outputStream.writeLong(probeTime)
+                outputStream.writeLong(receiveTime)
+                outputStream.writeLong(System.currentTimeMillis())
+                outputStream.flush()
+            })
+        } else if (objType == "q") {  // clock probe reply
+            val probeTime = inputStream.readLong()
+            val remoteReceiveTime = inputStream.readLong()
+            val remoteSendTime = inputStream.readLong()
+            val receiveTime = System.currentTimeMillis()
+            PeerClock.of(peer).addSample(probeTime, remoteReceiveTime, remoteSendTime, receiveTime)
+            logger?.finest("Clock of $peer: ${PeerClock.of(peer)}")
+        } else if (objType == "e") {  // message for a registered handler
+            val channel = inputStream.readUTF()
+            val payload = ByteArray(inputStream.readInt())
+            inputStream.readFully(payload)
+            cloud.receiveMessage(peer, channel, payload)
+        } else if (objType == "c") {  // checksum request
+            val path = inputStream.readUTF()
+            val chunkSize = inputStream.readInt()
+            val remotePort = inputStream.readInt()
+            logger?.info("Received checksum request by $peer for file $path")
+            Thread(Runnable {
+                Socket(socket.inetAddress, remotePort).use { checksumSocket ->
+                    val out = DataOutputStream(BufferedOutputStream(checksumSocket.getOutputStream()))
+                    try {
+                        val checksums = chunkChecksums(File(path), chunkSize)
+                        out.writeInt(checksums.size)
+                        checksums.forEach { out.writeLong(it) }
+                    } catch (exc: IOException) {
+                        logger?.warning("Failed to compute checksums of $path: $exc")
+                        out.writeInt(-1)
+                    }
+                    out.flush()
                 }
-                fileSocket.getOutputStream().flush()
-                fileSocket.getOutputStream().close()
             }).start()
         } else {
             logger?.warning("Received unknown input from $peer: $objType")
@@ -299,6 +618,7 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
     }
 
     fun startHandlingInput() {
+        peer.health.connected(cloud.heartbeatInterval)
         inputService = Executors.newFixedThreadPool(1, ThreadFactory { r -> DeserializerThread(cloud, peer, r) }).submit(Runnable {
             while (!socket.isClosed){
                 try{
@@ -318,12 +638,16 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
                     logger?.warning("Error during input analysis from $peer: $exc. Connection may be corrupted.")
                 }
             }
+            clockProbes?.cancel(false)
+            heartbeats?.cancel(false)
             cloud.peerDisconnected(peer)
             cloud.tcp?.connections?.remove(this)
         })
     }
 
     fun close() {
+        clockProbes?.cancel(false)
+        heartbeats?.cancel(false)
         socket.close()
         senderThread.shutdown()
         inputService?.cancel(true)
@@ -331,4 +655,71 @@ internal class CloudTCPConnection(val socket: Socket, val cloud: Cloud, val logg
 }
 
 
+private const val CLOCK_PROBE_BURST = 5
+private const val CLOCK_PROBE_INTERVAL = 2000L
+private const val PAYLOAD_CHUNK = 64 * 1024  // bytes read between two signs of life
+
+
+/**
+ * Already-compressed audio formats like MP3 or OGG are sent as-is, uncompressed ones like WAV and AIFF are deflated.
+ */
+internal fun isCompressible(path: String): Boolean {
+    val extension = path.substringAfterLast('.', "").toLowerCase()
+    return extension in setOf("wav", "wave", "aif", "aiff", "aifc", "au", "snd")
+}
+
+
+internal fun deflate(bytes: ByteArray): ByteArray {
+    val deflater = Deflater(Deflater.BEST_SPEED)
+    val buffer = ByteArrayOutputStream(bytes.size / 2 + 64)
+    DeflaterOutputStream(buffer, deflater).use { it.write(bytes) }
+    deflater.end()
+    return buffer.toByteArray()
+}
+
+
+/**
+ * Counts raw and transmitted bytes per message type of a connection.
+ * Message types are the same as the ones used in the protocol, e.g. "d" for data updates and "f" for files.
+ */
+class TrafficStats
+{
+    private val raw = ConcurrentHashMap<String, AtomicLong>()
+    private val wire = ConcurrentHashMap<String, AtomicLong>()
+
+    fun record(type: String, rawBytes: Long, wireBytes: Long) {
+        raw.computeIfAbsent(type) { AtomicLong() }.addAndGet(rawBytes)
+        wire.computeIfAbsent(type) { AtomicLong() }.addAndGet(wireBytes)
+    }
+
+    /**
+     * Returns the achieved compression ratio (raw / transmitted) per message type.
+     */
+    fun ratios(): Map<String, Double> {
+        return raw.keys.associate { type -> type to raw[type]!!.get().toDouble() / maxOf(1, wire[type]!!.get()) }
+    }
+
+    override fun toString(): String {
+        return raw.keys.sorted().joinToString(", ") { type -> "$type: ${wire[type]!!.get() / 1000} kB (x${"%.2f".format(ratios()[type])})" }
+    }
+}
+
+
+private class CountingOutputStream(private val target: OutputStream) : FilterOutputStream(target)
+{
+    var count: Long = 0
+        private set
+
+    override fun write(b: Int) {
+        target.write(b)
+        count++
+    }
+
+    override fun write(b: ByteArray, off: Int, len: Int) {
+        target.write(b, off, len)
+        count += len
+    }
+}
+
+
 class DeserializerThread(val cloud: Cloud, val fromPeer: Peer, target: Runnable) : Thread(target)
@@ -0,0 +1,247 @@
+package cloud
+
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * Persists the [SynchronizedData] of a [Cloud] in [directory].
+ *
+ * Every change is appended to a journal as a single record so that saving does not depend on the total amount of data.
+ * Changes made by a [SynchronizedOperation] are recorded as the operation, other changes as the whole data object.
+ * Once the journal has grown to several times the size of the last snapshot, the current state is written to a new snapshot
+ * and the journal is started over.
+ * All file access happens on a dedicated background thread which is also used to deserialize records.
+ *
+ * Both files start with a header containing the sequence number of the last change included in the snapshot.
+ * Records consist of a sequence number, the length and CRC32 of the payload and the payload,
+ * one serialized data object or operation.
+ * Records of the journal that are already contained in the snapshot are skipped on recovery,
+ * a truncated or corrupt record ends the journal.
+ * Operations recorded just after a snapshot may already be contained in it; replaying them has no effect since operations are idempotent.
+ */
+class CloudJournal internal constructor(val cloud: Cloud, val directory: File)
+{
+    companion object {
+        private const val MAGIC = 0x434A524E  // "CJRN"
+        private const val VERSION = 2  // version 1 contains no operations
+        private const val MIN_COMPACTION_SIZE = 64 * 1024L
+        private const val COMPACTION_RATIO = 4  // journal size relative to the snapshot that triggers compaction
+    }
+
+    private val snapshotFile = File(directory, "snapshot.bin")
+    private val journalFile = File(directory, "journal.bin")
+    private val thread = Executors.newSingleThreadExecutor { r -> DeserializerThread(cloud, cloud.localPeer, r).also { t -> t.name = "Cloud Journal"; t.isDaemon = true } }
+    private val pending = ArrayList<Any>()  // unwritten data objects and operations in order, guarded by itself
+    private val listener: (SynchronizedData) -> Unit = { data -> record(data, data.javaClass) }
+    private val operationListener: (SynchronizedOperation<*>) -> Unit = { operation -> record(operation, null) }
+
+    // Accessed only on thread
+    private var journal: DataOutputStream? = null
+    private var sequence: Long = 0
+    private var journalSize: Long = 0
+    private var snapshotSize: Long = 0
+
+
+    /**
+     * Reads the snapshot and replays the journal, then pushes the restored data to the cloud.
+     *
+     * @param legacyFile file written by earlier versions, imported if no snapshot exists yet
+     */
+    @Throws(IOException::class)
+    fun recover(legacyFile: File?, isDataOlder: Boolean) {
+        val restored = try {
+            thread.submit(Callable { readAll(legacyFile) }).get()
+        } catch (exc: Exception) {
+            throw IOException("Failed to recover cloud state from $directory", exc)
+        }
+        for (data in restored) {
+            data.fromFile()?.let { transformed -> cloud.remoteUpdateSynchronized(transformed, false, isDataOlder, cloud.logger) }
+        }
+    }
+
+    /**
+     * Starts recording changes. The recovered state is compacted into a fresh snapshot first.
+     */
+    fun start() {
+        cloud.onSynchronizedUpdate.add(listener)
+        cloud.onSynchronizedOperation.add(operationListener)
+        thread.submit { write { compact() } }
+    }
+
+    /**
+     * Writes all pending changes into a final snapshot and stops the background thread.
+     * Blocks until the snapshot has been written.
+     */
+    fun close() {
+        cloud.onSynchronizedUpdate.remove(listener)
+        cloud.onSynchronizedOperation.remove(operationListener)
+        thread.submit {
+            write {
+                flushPending()
+                compact()
+                journal?.close()
+                journal = null
+            }
+        }
+        thread.shutdown()
+        thread.awaitTermination(5, TimeUnit.SECONDS)
+    }
+
+    /**
+     * @param replaces class of a whole data object, which supersedes all unwritten changes of that class, `null` for operations
+     */
+    private fun record(change: Any, replaces: Class<*>?) {
+        val schedule = synchronized(pending) {
+            val wasEmpty = pending.isEmpty()
+            if (replaces != null) pending.removeAll { c -> targetOf(c) == replaces }
+            pending.add(change)
+            wasEmpty
+        }
+        if (schedule && !thread.isShutdown) thread.submit { write { flushPending() } }
+    }
+
+    private fun write(action: () -> Unit) {
+        try {
+            action()
+        } catch (exc: IOException) {
+            cloud.logger.warning("Failed to write cloud journal in $directory: $exc")
+        }
+    }
+
+    private fun flushPending() {
+        val batch = synchronized(pending) { ArrayList(pending).also { pending.clear() } }
+        if (batch.isEmpty()) return
+        val out = journal ?: openJournal()
+        for (change in batch) {
+            journalSize += writeRecord(out, ++sequence, change)
+        }
+        out.flush()
+        if (journalSize > maxOf(MIN_COMPACTION_SIZE, COMPACTION_RATIO * snapshotSize)) compact()
+    }
+
+    /**
+     * Writes the current state to a new snapshot and truncates the journal.
+     * The snapshot replaces the old one atomically, so a crash leaves either the old or the new snapshot.
+     */
+    private fun compact() {
+        journal?.close()
+        journal = null
+        directory.mkdirs()
+        val tmp = File(directory, "snapshot.tmp")
+        DataOutputStream(BufferedOutputStream(FileOutputStream(tmp))).use { out ->
+            out.writeInt(MAGIC)
+            out.writeInt(VERSION)
+            out.writeLong(sequence)
+            for (data in cloud.getSynchronizedData()) {
+                writeRecord(out, sequence, data)
+            }
+        }
+        Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        snapshotSize = snapshotFile.length()
+        openJournal()
+    }
+
+    private fun openJournal(): DataOutputStream {
+        directory.mkdirs()
+        val out = DataOutputStream(BufferedOutputStream(FileOutputStream(journalFile, false)))
+        out.writeInt(MAGIC)
+        out.writeInt(VERSION)
+        out.writeLong(sequence)
+        out.flush()
+        journal = out
+        journalSize = 0
+        return out
+    }
+
+    private fun targetOf(change: Any): Class<*> {
+        return if (change is SynchronizedOperation<*>) change.target else change.javaClass
+    }
+
+    private fun writeRecord(out: DataOutputStream, sequence: Long, change: Any): Int {
+        val buffer = ByteArrayOutputStream()
+        ObjectOutputStream(buffer).use { it.writeObject(change) }
+        val bytes = buffer.toByteArray()
+        out.writeLong(sequence)
+        out.writeInt(bytes.size)
+        out.writeLong(checksum(bytes, bytes.size))
+        out.write(bytes)
+        return 20 + bytes.size
+    }
+
+    private fun readAll(legacyFile: File?): Collection<SynchronizedData> {
+        val latest = LinkedHashMap<Class<*>, SynchronizedData>()
+        var snapshotSequence = 0L
+        if (snapshotFile.exists()) {
+            snapshotSequence = readRecords(snapshotFile, latest, -1)
+            snapshotSize = snapshotFile.length()
+        } else if (legacyFile != null && legacyFile.exists()) {
+            try {
+                ObjectInputStream(legacyFile.inputStream().buffered()).use {
+                    for (data in it.readObject() as List<*>) {
+                        data as SynchronizedData
+                        latest[data.javaClass] = data
+                    }
+                }
+                cloud.logger.info("Imported cloud state from $legacyFile")
+            } catch (exc: Exception) {
+                cloud.logger.warning("Failed to import $legacyFile: $exc")
+            }
+        }
+        sequence = if (journalFile.exists()) maxOf(snapshotSequence, readRecords(journalFile, latest, snapshotSequence)) else snapshotSequence
+        return latest.values
+    }
+
+    /**
+     * Reads all records with a sequence number greater than [after] into [into].
+     * Data objects replace earlier versions of the same class, operations are applied to them.
+     *
+     * @return the highest sequence number read, at least the one in the header
+     */
+    private fun readRecords(file: File, into: MutableMap<Class<*>, SynchronizedData>, after: Long): Long {
+        DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+            if (input.readInt() != MAGIC || input.readInt() !in 1..VERSION) {
+                cloud.logger.warning("Ignoring $file: unknown format")
+                return 0
+            }
+            var last = input.readLong()
+            while (true) {
+                val sequence: Long
+                val bytes: ByteArray
+                try {
+                    sequence = input.readLong()
+                    val length = input.readInt()
+                    val crc = input.readLong()
+                    if (length < 0) throw IOException("Negative record length")
+                    bytes = ByteArray(length)
+                    input.readFully(bytes)
+                    if (checksum(bytes, length) != crc) throw IOException("Checksum mismatch")
+                } catch (exc: EOFException) {
+                    break
+                } catch (exc: IOException) {
+                    cloud.logger.warning("Stopped reading $file at corrupt record: $exc")
+                    break
+                }
+                last = maxOf(last, sequence)
+                if (sequence <= after) continue
+                try {
+                    val change = ObjectInputStream(ByteArrayInputStream(bytes)).use { it.readObject() }
+                    if (change is SynchronizedOperation<*>) {
+                        @Suppress("UNCHECKED_CAST")
+                        change as SynchronizedOperation<SynchronizedData>
+                        into[change.target] = change.applyTo(into[change.target] ?: change.target.getDeclaredConstructor().newInstance())
+                    } else {
+                        change as SynchronizedData
+                        into[change.javaClass] = change
+                    }
+                } catch (exc: Exception) {
+                    cloud.logger.warning("Skipping unreadable record in $file: $exc")
+                }
+            }
+            return last
+        }
+    }
+}
@@ -31,6 +31,19 @@ class Peer(var isLocal: Boolean, var name: String, var address: String, var id:
 
     internal var socketAddress: InetSocketAddress? = null
 
+    /**
+     * Clock offset and network latency of this peer relative to the local machine.
+     * Estimates are updated periodically while the peer is connected.
+     */
+    val clock: PeerClock
+        get() = PeerClock.of(this)
+
+    /**
+     * Liveness of this peer as observed from the local machine.
+     */
+    val health: PeerHealth
+        get() = PeerHealth.of(this)
+
 
     private fun writeObject(stream: ObjectOutputStream) {
         stream.writeBoolean(isLocal)
@@ -1,5 +1,6 @@
 package player.extensions.ambience
 
+import audio.util.DurationService
 import cloud.Cloud
 import cloud.CloudFile
 import javafx.application.Platform
@@ -34,9 +35,12 @@ import player.fx.control.SpeakerCell
 import player.fx.icons.FXIcons
 import player.model.PlayerData
 import player.model.TaskChainBuilder
+import player.model.data.ArmedEffect
 import player.model.data.MasterGain
 import player.model.data.Speaker
+import player.model.playback.EffectBank
 import java.io.File
+import java.io.IOException
 import java.io.ObjectInputStream
 import java.io.ObjectOutputStream
 import java.net.URL
@@ -140,7 +144,10 @@ class AmbienceApp(val settings: AmbienceSettings, val cloud: Cloud, val extensio
     }
 
     fun deleteAmbience() {
-        ambiences!!.selectionModel.selectedItem?.let { ambience -> ambiences!!.items.remove(ambience) }
+        ambiences!!.selectionModel.selectedItem?.let { ambience ->
+            ambiences!!.items.remove(ambience)
+            ambience.dispose()
+        }
     }
 
     fun save(stream: ObjectOutputStream) {
@@ -151,6 +158,7 @@ class AmbienceApp(val settings: AmbienceSettings, val cloud: Cloud, val extensio
     }
 
     fun load(stream: ObjectInputStream) {
+        ambiences!!.items.forEach { ambience -> ambience.dispose() }
         ambiences!!.items.clear()
         for (index in 1..stream.readInt()) {
             val ambience = Ambience(this)
@@ -198,7 +206,15 @@ class Ambience(val window: AmbienceApp, var name: String = "New ambience") {
         }
     }
 
+    /**
+     * Stops all effects of this ambience and withdraws their armed data.
+     */
+    fun dispose() {
+        effects.children.forEach { effect -> (effect as EffectPane).dispose() }
+    }
+
     fun load(stream: ObjectInputStream) {
+        dispose()
         effects.children.clear()
         name = stream.readUTF()
         for (index in 1..stream.readInt()) {
@@ -222,18 +238,20 @@ class EffectPane(val ambience: Ambience) : StackPane(), Initializable, Function<
     @FXML var nTimes: TextField? = null
     @FXML var perTimeUnit: ComboBox<String>? = null
 
-    private val player = TaskChainBuilder(ambience.window.cloud, this, "Amb", 2)
+    private val cloud = ambience.window.cloud
+    private val player = TaskChainBuilder(cloud, this, "Amb", 2)  // continuous playback
     private val countdown = Countdown()
+    private val effectId = UUID.randomUUID().toString()
+    private var armed: ArmedEffect? = null  // random playback
 
     private var playing: BooleanExpression? = null
-    private var inSilentMode = false
 
     init {
         val loader = FXMLLoader(javaClass.getResource("effect.fxml"))
         loader.setController(this)
         root = loader.load()
         children.add(root)
-        countdown.finished.addListener { _, _, finished -> if (finished) updatePlayer(false) }
+        countdown.finished.addListener { _, _, finished -> if (finished) fire() }
         player.pauseOnFinish.bind(continuous!!.selectedProperty().not())
         player.finishedFlag.addListener { _, _, isFinished -> if (isFinished) Platform.runLater { updatePlayer(false) } }
         Platform.runLater {
@@ -275,9 +293,13 @@ class EffectPane(val ambience: Ambience) : StackPane(), Initializable, Function<
         playing!!.addListener { _, _, _ -> updatePlayer(true) }
 
         gain!!.valueProperty().addListener { _, _, _ -> updatePlayer(false) }
+        continuous!!.selectedProperty().addListener { _, _, _ -> updatePlayer(true) }
+        file.addListener { _, _, _ -> updateArmed() }
+        direction!!.selectionModel.selectedItemProperty().addListener { _, _, _ -> updateArmed() }
     }
 
     private fun updatePlayer(restart: Boolean) {
+        updateArmed()
         val speaker = direction!!.selectionModel.selectedItem?.getSpeaker()
         val file = this.file.value
         val playing = speaker != null && this.playing!!.value && file != null && ambience.playing.value
@@ -285,32 +307,49 @@ class EffectPane(val ambience: Ambience) : StackPane(), Initializable, Function<
         player.balance.value = direction!!.selectionModel.selectedItem?.getBalance() ?: 0.0
         if (continuous!!.isSelected) {
             // Handle continuous case
+            countdown.paused.value = true
             player.paused.value = !playing
             if (playing) {
                 player.activate(speaker!!)
                 if (restart) player.play(CloudFile(file), 0.0)
             }
+            if (!playing) player.deactivate()
         } else {
-            // Handle random case
-            if (restart || player.finishedFlag.value) {  // We now enter silent mode
-                player.finishedFlag.value = false
-                countdown.reset(Math.random() / playRatePerSecond())
-                inSilentMode = true
-            }
-            else if (countdown.finished.value) {  // We now enter
-                inSilentMode = false
-            }
-            if (inSilentMode) {
-                countdown.paused.value = !playing
-            } else {
-                player.paused.value = !playing
-                if (playing) {
-                    player.activate(speaker!!)
-                    if (!player.isPlaying()) player.play(CloudFile(file), 0.0)
-                }
-            }
+            // Handle random case, the armed effect is fired whenever the countdown finishes
+            player.deactivate()
+            if (restart) countdown.reset(Math.random() / playRatePerSecond())
+            countdown.paused.value = !playing
         }
-        if (!playing) player.deactivate()
+    }
+
+    /**
+     * While playing in random mode, publishes the effect so that the peer of the target speaker keeps it decoded. Otherwise withdraws it
+     * so that the target does not hold its output lines.
+     */
+    private fun updateArmed() {
+        val speaker = direction!!.selectionModel.selectedItem?.getSpeaker()
+        val file = this.file.value
+        val effect = if (!continuous!!.isSelected && speaker != null && file != null && playing?.value == true) ArmedEffect(effectId, speaker, CloudFile(file)) else null
+        if (effect == armed) return
+        armed = effect
+        if (effect != null) cloud.push(ArmedEffect::class.java, listOf(effect), this, true)
+        else cloud.yankAll(ArmedEffect::class.java, this)
+    }
+
+    /**
+     * Plays the armed effect once and waits for the next time to play it.
+     * The random wait starts when the effect ends, so that long effects do not overlap.
+     */
+    private fun fire() {
+        val effect = armed ?: return
+        val source = direction!!.selectionModel.selectedItem ?: return
+        try {
+            cloud.sendMessage(effect.target.peer, EffectBank.CHANNEL, EffectBank.encodeFire(effect.id, gain!!.value, source.getBalance()))
+        } catch (exc: IOException) {
+            cloud.logger.fine("Cannot fire effect on ${effect.target}: $exc")
+        }
+        val duration = maxOf(0.0, DurationService.getDuration(File(effect.file.getPath())))  // read from the headers of the local file
+        countdown.reset(duration + Math.random() / playRatePerSecond())
     }
 
     @FXML fun selectFile() {
@@ -321,9 +360,17 @@ class EffectPane(val ambience: Ambience) : StackPane(), Initializable, Function<
 
     @FXML fun deleteEffect() {
         file.value = null
+        dispose()
         (parent as VBox).children.remove(this)
     }
 
+    fun dispose() {
+        countdown.paused.value = true
+        player.deactivate()
+        armed = null
+        cloud.yankAll(ArmedEffect::class.java, this)
+    }
+
     fun write(stream: ObjectOutputStream) {
         stream.writeUTF(file.value?.absolutePath ?: "")
         stream.writeDouble(gain!!.value)
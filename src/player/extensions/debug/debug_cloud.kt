@@ -165,7 +165,8 @@ class CloudViewer(val cloud: Cloud) : Initializable
     }
 
     private fun takeSnapshot() {
-        val snapshot = CloudSnapshot(snapshotsCreated, cloud.getAllCurrentSynchronized(), cloud.allData)
+        val state = cloud.snapshot()
+        val snapshot = CloudSnapshot(snapshotsCreated, state.synchronized, state.data)
         snapshotsCreated++
         Platform.runLater {
             snapshots.add(snapshot)
@@ -232,7 +233,8 @@ class CloudViewer(val cloud: Cloud) : Initializable
                     if(cloud.isConnected(peer)) FXIcons.get("Play.png", 20.0)
                     else FXIcons.get("Pause.png", 20.0)
                 }
-                text = peer.toString()
+                text = if (peer.isLocal) peer.toString()
+                else cloud.getTrafficStats(peer)?.let { stats -> "$peer\nClock: ${peer.clock}\nHealth: ${peer.health}\n$stats" } ?: "$peer\nHealth: ${peer.health}"
             } else {
                 text = null
                 graphic = null
@@ -62,6 +62,7 @@ class PlaybackViewer(val playback: PlaybackEngine) : Initializable
     private val root: Parent
 
     @FXML private var jobView: VBox? = null
+    @FXML private var cacheStats: Label? = null
 
     init {
         val loader = FXMLLoader(javaClass.getResource("local-playback.fxml"))
@@ -71,7 +72,12 @@ class PlaybackViewer(val playback: PlaybackEngine) : Initializable
     }
 
     override fun initialize(p0: URL?, p1: ResourceBundle?) {
-        playback.jobs.addListener(InvalidationListener { Platform.runLater { rebuild() } })
+        playback.jobs.addListener(InvalidationListener { Platform.runLater { rebuild(); refreshCache() } })
+        refreshCache()
+    }
+
+    @FXML fun refreshCache() {
+        cacheStats!!.text = listOfNotNull(playback.files.cache?.stats(), playback.preloader.stats(), playback.reconciliationStats).joinToString("\n")
     }
 
     fun show(stage: Stage) {
@@ -277,7 +277,7 @@ class TaskView(val task: PlayTask, val statuses: List<PlayTaskStatus>) : Initial
         trigger!!.text = task.trigger?.taskId ?: "immediately"
         file!!.graphic = if(task.paused) FXIcons.get("Pause.png", 20.0) else FXIcons.get("Play.png", 20.0)
         for (status in statuses) {
-            val statusLabel = Label("${status.displayString()}, position=${status.task.position}, duration=${status.task.duration}")
+            val statusLabel = Label("${status.displayString()}, position=${status.task.position}, duration=${status.task.duration}" + (status.drift?.let { ", drift=$it" } ?: ""))
             statusLabel.isWrapText = true
             statusLabel.graphic = if(status.task.paused) FXIcons.get("Pause.png", 20.0) else FXIcons.get("Play.png", 20.0)
             statusesList!!.children.add(statusLabel)
@@ -57,6 +57,7 @@ class AppSettings(val config: CycloneConfig, var player: PlaylistPlayer, val pla
     @FXML var minVolumeDisplay: Label? = null
     // Library
     @FXML var libraryDirectories: ListView<CloudFile>? = null
+    @FXML var libraryStatus: Label? = null
     // Network
     @FXML var connectOnStartup: CheckBox? = null
     @FXML var computerName: TextField? = null
@@ -107,6 +108,7 @@ class AppSettings(val config: CycloneConfig, var player: PlaylistPlayer, val pla
         if(!player.library.roots.isEmpty()) {
             libraryDirectories!!.selectionModel.select(0)
         }
+        libraryStatus!!.textProperty().bind(player.library.progress)
         // Audio
         val soundEngineGroup = ToggleGroup()
         javaSound!!.toggleGroup = soundEngineGroup
@@ -184,6 +186,8 @@ class AppSettings(val config: CycloneConfig, var player: PlaylistPlayer, val pla
     }
 
     @FXML fun connect() {
+        player.cloud.heartbeatInterval = (config.heartbeatInterval.value * 1000).toLong()
+        player.cloud.failureTimeout = (config.failureTimeout.value * 1000).toLong()
         player.cloud.connect(multicastAddress!!.text, multicastPort!!.text.toInt(), true, (broadcastInterval!!.text.toDouble() * 1000).toLong())
     }
 
@@ -57,7 +57,7 @@ public class Launch2 extends Application {
 		Peer.getLocal().setId("1");
 		Peer.getLocal().setName("peer1");
 		Cloud cloud1 = new Cloud();
-		cloud1.read(getConfigFile("status.cld"), true);
+		cloud1.openJournal(getConfigFile("cloud"), getConfigFile("status.cld"), true);
 
 		Cloud cloud2 = new Cloud();
 		cloud2.initLocalPeer$Cyclone(new Peer(true, "peer2", "localhost", "2"));
@@ -62,13 +62,10 @@ public class Launcher extends Application {
 		if (computerName != null) Peer.getLocal().setName(computerName);
 
 		Cloud cloud1 = new Cloud();
-		File prevStatus = getConfigFile("status.cld");
-		if (prevStatus.exists()) {
-			try {
-				cloud1.read(prevStatus, true);
-			}catch (Exception exc) {
-				exc.printStackTrace();
-			}
+		try {
+			cloud1.openJournal(getConfigFile("cloud"), getConfigFile("status.cld"), true);
+		} catch (Exception exc) {
+			exc.printStackTrace();
 		}
 
 		PlaybackEngine engine = new PlaybackEngine(cloud1, config);
@@ -5,6 +5,7 @@ import cloud.CloudFile
 import javafx.animation.FadeTransition
 import javafx.animation.TranslateTransition
 import javafx.application.Platform
+import javafx.beans.InvalidationListener
 import javafx.beans.binding.Bindings
 import javafx.beans.property.SimpleObjectProperty
 import javafx.beans.property.SimpleStringProperty
@@ -81,11 +82,13 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
     private val searchRoot: Node
     private var searchFocus: Node? = null
     private val library: MediaLibrary
+    private val mediaDisplay: MediaDisplay
     private val settings: AppSettings
 
 
     init {
         library = player.library
+        mediaDisplay = MediaDisplay(library)
         settings = AppSettings(config!!, player, engine)
         root = StackPane()
         root.children.add(loadPlayer())
@@ -99,6 +102,22 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
         stage.icons.add(FXIcons.get("Play2.png", 32.0).image)
         stage.onHidden = EventHandler { quit() }
         stage.setOnCloseRequest { quit() }
+        stage.showingProperty().addListener(InvalidationListener { updatePositionObservation() })
+        stage.iconifiedProperty().addListener(InvalidationListener { updatePositionObservation() })
+    }
+
+    private var positionObservation: AutoCloseable? = null
+
+    /**
+     * Keeps the position display up to date only while the window is visible.
+     */
+    private fun updatePositionObservation() {
+        if (stage.isShowing && !stage.isIconified) {
+            if (positionObservation == null) positionObservation = player.observePosition(0.05)
+        } else {
+            positionObservation?.close()
+            positionObservation = null
+        }
     }
 
 
@@ -167,7 +186,8 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
                     }
                 }
                 player.currentFileProperty.addListener { _, _, file: CloudFile? -> playlist!!.selectionModel.select(file) }
-                playlist!!.setCellFactory { MediaCell() }
+                playlist!!.setCellFactory { MediaCell(mediaDisplay) }
+                playlist!!.fixedCellSize = MediaCell.HEIGHT  // rows are not measured while scrolling
                 playlistListView = playlist
             }
 
@@ -179,7 +199,7 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
             @FXML
             fun clearPlaylist() {
                 player.currentFileProperty.set(null)
-                player.playlist.clear()
+                player.clearPlaylist()
                 closePlaylist()
             }
 
@@ -203,6 +223,7 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
             override fun initialize(location: URL?, resources: ResourceBundle?) {
                 searchField!!.textProperty().addListener { _, _, n ->
                     if (n.isEmpty()) {
+                        library.cancelSearch()
                         searchResult!!.setItems(library.recentlyUsed)
                     } else {
                         searchResult!!.setItems(library.startSearch(n))
@@ -211,7 +232,8 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
                     searchResult!!.items.addListener(ListChangeListener { if (!searchResult!!.items.isEmpty()) searchResult!!.selectionModel.select(0) })
                 }
                 searchResult!!.items = library.recentlyUsed
-                searchResult!!.setCellFactory { MediaCell() }
+                searchResult!!.setCellFactory { MediaCell(mediaDisplay) }
+                searchResult!!.fixedCellSize = MediaCell.HEIGHT
                 searchResult!!.onKeyPressed = EventHandler { e: KeyEvent -> if (e.code == KeyCode.ENTER) playSelected(e.isControlDown) }
                 searchField!!.onKeyPressed = EventHandler { e: KeyEvent ->
                     if (e.code == KeyCode.ENTER) {
@@ -391,22 +413,6 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
         }
     }
 
-    internal class MediaCell : ListCell<CloudFile>() {
-        var fileIcon: ImageView = FXIcons.get("Play.png", 32.0)
-        var dirIcon: ImageView = FXIcons.get("PlayFolder.png", 32.0)
-
-        override fun updateItem(item: CloudFile?, empty: Boolean) {
-            super.updateItem(item, empty)
-            if (item != null) {
-                text = AudioFiles.inferTitle(item.getPath())
-                graphic = if (item.isDirectory()) dirIcon else fileIcon
-            } else {
-                text = null
-                graphic = null
-            }
-        }
-    }
-
     fun show() {
         stage.show()
         stage.width = 314.0 // default values, apply for bundled application
@@ -415,8 +421,9 @@ class PlayerWindow internal constructor(val stage: Stage, val player: PlaylistPl
 
     @FXML
     fun quit() {
-        player.cloud.write(getConfigFile("status.cld"))
+        player.cloud.journal?.close()
         settings.saveExtensions()
+        player.config.close()
         System.exit(0)
     }
 
@@ -0,0 +1,127 @@
+package player.fx.app
+
+import cloud.CloudFile
+import javafx.application.Platform
+import javafx.scene.control.ListCell
+import javafx.scene.image.ImageView
+import player.fx.icons.FXIcons
+import player.model.AudioFiles
+import player.model.MediaLibrary
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Paths
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.LinkedBlockingDeque
+
+/**
+ * Provides the text and icon of media files shown in list cells.
+ *
+ * Display strings are computed once per path and cached. Initially, the title is taken from the metadata cache or inferred from the file name
+ * and files without an audio extension are shown as directories.
+ * Local files are then resolved on a background thread, reading their tags if necessary.
+ * Only files shown by a cell are resolved, the most recently shown first, so that scrolling through long lists does not read files that are no longer visible.
+ *
+ * All methods must be called on the JavaFX application thread.
+ */
+class MediaDisplay(val library: MediaLibrary)
+{
+    companion object {
+        private const val MAX_CACHED = 10_000
+    }
+
+    /**
+     * @param resolved whether the file has been read, otherwise the values are guessed from the path
+     */
+    class Display(val title: String, val isDirectory: Boolean, val resolved: Boolean)
+
+    private val cache = object : LinkedHashMap<String, Display>(256, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Display>?): Boolean = size > MAX_CACHED
+    }
+    private val shownBy = ConcurrentHashMap<String, MutableSet<MediaCell>>()  // modified on the JavaFX application thread, read by the resolver
+    private val requests = LinkedBlockingDeque<CloudFile>()
+    private val requested = ConcurrentHashMap.newKeySet<String>()  // paths in requests
+
+    init {
+        Thread(Runnable { resolve() }, "Tag Resolver").also { t -> t.isDaemon = true }.start()
+    }
+
+    fun get(file: CloudFile): Display {
+        return cache.getOrPut(file.getPath()) {
+            val path = file.getPath()
+            Display(library.title(file), !AudioFiles.isAudioFile(path), !file.originatesHere())
+        }
+    }
+
+    internal fun show(cell: MediaCell, previous: CloudFile?, file: CloudFile?) {
+        previous?.let { p ->
+            val cells = shownBy[p.getPath()]
+            cells?.remove(cell)
+            if (cells?.isEmpty() == true) shownBy.remove(p.getPath())
+        }
+        if (file == null) return
+        shownBy.getOrPut(file.getPath()) { HashSet() }.add(cell)
+        if (!get(file).resolved && requested.add(file.getPath())) requests.addLast(file)
+    }
+
+    /**
+     * Resolves requested files until the application exits. Runs on the resolver thread.
+     */
+    private fun resolve() {
+        while (true) {
+            val file = try { requests.takeLast() } catch (exc: InterruptedException) { return }
+            val path = file.getPath()
+            requested.remove(path)
+            if (!shownBy.containsKey(path)) continue  // scrolled out of view
+            val display = try {
+                val attributes = Files.readAttributes(Paths.get(path), BasicFileAttributes::class.java)
+                val title = if (attributes.isDirectory) null else library.metadata.get(path, attributes.size(), attributes.lastModifiedTime().toMillis())?.title
+                Display(title ?: AudioFiles.inferTitle(path), attributes.isDirectory, true)
+            } catch (exc: IOException) {
+                null
+            }
+            Platform.runLater {
+                cache[path] = display ?: Display(AudioFiles.inferTitle(path), false, true)
+                shownBy[path]?.forEach { cell -> cell.render() }
+            }
+        }
+    }
+}
+
+
+/**
+ * List cell showing the title of a media file with an icon, see [MediaDisplay].
+ */
+class MediaCell(private val display: MediaDisplay) : ListCell<CloudFile>()
+{
+    companion object {
+        /** Fixed row height, the 32 pixel icon plus the default cell padding */
+        const val HEIGHT = 38.0
+    }
+
+    private val fileIcon: ImageView = FXIcons.get("Play.png", 32.0)
+    private val dirIcon: ImageView = FXIcons.get("PlayFolder.png", 32.0)
+    private var shown: CloudFile? = null
+
+    override fun updateItem(item: CloudFile?, empty: Boolean) {
+        super.updateItem(item, empty)
+        val file = if (empty) null else item
+        if (file != shown) {
+            display.show(this, shown, file)
+            shown = file
+        }
+        render()
+    }
+
+    internal fun render() {
+        val file = shown
+        if (file != null) {
+            val info = display.get(file)
+            text = info.title
+            graphic = if (info.isDirectory) dirIcon else fileIcon
+        } else {
+            text = null
+            graphic = null
+        }
+    }
+}
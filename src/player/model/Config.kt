@@ -2,14 +2,18 @@ package player.model
 
 import cloud.CloudFile
 import cloud.getComputerName
-import javafx.application.Platform
-import javafx.beans.InvalidationListener
 import javafx.beans.property.*
 import player.CastToStringProperty
 import player.CustomObjectProperty
 import java.io.File
 import java.io.IOException
+import java.io.StringWriter
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
 import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.Consumer
 import java.util.function.Supplier
 import java.util.stream.Collectors
@@ -19,6 +23,12 @@ fun getConfigFile(filename: String): File {
     return File(System.getProperty("user.home") + "/AppData/Roaming/Cyclone/" + filename).absoluteFile
 }
 
+/**
+ * Application settings stored in [file].
+ *
+ * Each change is appended to a journal next to [file] on a background thread.
+ * After [COMPACT_AFTER] journal entries or on [close], all settings are written to [file] and the journal is deleted.
+ */
 class CycloneConfig(val file: File)
 {
     // General
@@ -32,6 +42,10 @@ class CycloneConfig(val file: File)
     val fadeOutDuration = SimpleDoubleProperty(this, "fadeOutDuration", 0.0)
     val fadeOutGain = SimpleDoubleProperty(this, "fadeOutGain", 0.0)
     val minGain = SimpleDoubleProperty(this, "minGain", 0.0)
+    val cacheSize = SimpleDoubleProperty(this, "cacheSize", 0.0)  // MB
+    val startDelay = SimpleDoubleProperty(this, "startDelay", 0.0)  // seconds
+    val preloadCount = SimpleIntegerProperty(this, "preloadCount", 0)  // files
+    val preloadMemory = SimpleDoubleProperty(this, "preloadMemory", 0.0)  // MB
     // Library
     val library = SimpleStringProperty(this, "library", "")
     // Network
@@ -42,6 +56,8 @@ class CycloneConfig(val file: File)
     val multicastPortString = CastToStringProperty(CustomObjectProperty<String>(listOf(multicastPort), Supplier { multicastPort.value.toString() }, Consumer<String?> { v -> multicastPort.value = v!!.toInt() }))
     val broadcastInterval = SimpleDoubleProperty(this, "broadcastInterval", 0.0)
     val broadcastIntervalString = CastToStringProperty(CustomObjectProperty<String>(listOf(broadcastInterval), Supplier { broadcastInterval.value.toString() }, Consumer<String?> { v -> broadcastInterval.value = v!!.toDouble() }))
+    val heartbeatInterval = SimpleDoubleProperty(this, "heartbeatInterval", 0.0)  // seconds
+    val failureTimeout = SimpleDoubleProperty(this, "failureTimeout", 0.0)  // seconds
     // Extensions
     val enabledExtensions = SimpleStringProperty(this, "enabledExtensions", "")
     val autoShowExtensions = SimpleStringProperty(this, "autoShowExtensions", "")
@@ -50,20 +66,27 @@ class CycloneConfig(val file: File)
 
     private val allProperties = listOf(
             debug, keyCombinations, singleInstance, skin, preventStandby,
-            audioEngine, bufferTime, fadeOutDuration, fadeOutGain, minGain,
+            audioEngine, bufferTime, fadeOutDuration, fadeOutGain, minGain, cacheSize, startDelay, preloadCount, preloadMemory,
             library,
-            connectOnStartup, computerName, multicastAddress, multicastPort, broadcastInterval,
+            connectOnStartup, computerName, multicastAddress, multicastPort, broadcastInterval, heartbeatInterval, failureTimeout,
             enabledExtensions, autoShowExtensions
     )
 
     val hasUnsavedChanges = SimpleBooleanProperty(false)
 
+    private val journalFile = File(file.parentFile, file.nameWithoutExtension + ".journal")
+    private val saveThread = Executors.newSingleThreadExecutor { r -> Thread(r, "Settings").also { it.isDaemon = true } }
+    private val journalEntries = AtomicInteger()
+    private var loading = false
+
     init {
         reset()
         for (property in allProperties) {
-            property.addListener { _, _, _ -> hasUnsavedChanges.value = true }
+            property.addListener { _, _, value ->
+                hasUnsavedChanges.value = true
+                if (!loading) journal(property.name, value.toString())
+            }
         }
-        hasUnsavedChanges.addListener(InvalidationListener { Platform.runLater { save() } })
     }
 
     fun reset() {
@@ -77,6 +100,10 @@ class CycloneConfig(val file: File)
         fadeOutDuration.value = 2.0
         fadeOutGain.value = 40.0
         minGain.value = -40.0
+        cacheSize.value = 2000.0
+        startDelay.value = 0.3
+        preloadCount.value = 3
+        preloadMemory.value = 500.0
         // Library
         val music = File(System.getProperty("user.home"), "Music")
         library.value = if (music.isDirectory) music.toString() else ""
@@ -86,28 +113,93 @@ class CycloneConfig(val file: File)
         multicastAddress.value = "225.139.25.1"
         multicastPort.value = 5324
         broadcastInterval.value = 1.0
+        heartbeatInterval.value = 0.5
+        failureTimeout.value = 5.0
         // Extensions
         enabledExtensions.value = ""
         autoShowExtensions.value = ""
     }
 
+    /**
+     * Writes all settings to [file] on the background thread, replacing the journal.
+     * The values are captured immediately.
+     */
     fun save() {
         if (!hasUnsavedChanges.value) return
-        if(!file.parentFile.exists())
-            file.parentFile.mkdirs()
         val properties = Properties()
         for (property in allProperties) {
             properties[property.name] = property.value.toString()
         }
-        file.printWriter().use {
-            properties.store(it, null)
-        }
+        journalEntries.set(0)
         hasUnsavedChanges.value = false
+        submit {
+            if(!file.parentFile.exists())
+                file.parentFile.mkdirs()
+            val tmp = File(file.parentFile, file.name + ".tmp")
+            tmp.printWriter().use {
+                properties.store(it, null)
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            journalFile.delete()
+        }
     }
 
+    /**
+     * Saves all settings and waits for pending writes to finish.
+     */
+    fun close() {
+        save()
+        saveThread.shutdown()
+        saveThread.awaitTermination(5, TimeUnit.SECONDS)
+    }
+
+    private fun journal(name: String, value: String) {
+        if (journalEntries.incrementAndGet() >= COMPACT_AFTER) {
+            save()
+            return
+        }
+        val properties = Properties()
+        properties[name] = value
+        val lines = StringWriter().also { properties.store(it, null) }.toString().lines().filter { l -> l.isNotEmpty() && !l.startsWith("#") }
+        submit {
+            if(!journalFile.parentFile.exists())
+                journalFile.parentFile.mkdirs()
+            journalFile.appendText(lines.joinToString(System.lineSeparator(), postfix = System.lineSeparator()))
+        }
+    }
+
+    private fun submit(write: () -> Unit) {
+        if (saveThread.isShutdown) return
+        saveThread.submit {
+            try {
+                write()
+            } catch (exc: IOException) {
+                System.err.println("Failed to save settings: $exc")
+            }
+        }
+    }
+
+    /**
+     * Loads [file] and applies the changes recorded in the journal since it was last written.
+     */
     fun load() {
         val properties = Properties()
-        file.bufferedReader().use { properties.load(it) }
+        if (file.exists() || !journalFile.exists())
+            file.bufferedReader().use { properties.load(it) }
+        val journaled = journalFile.exists()
+        if (journaled)
+            journalFile.bufferedReader().use { properties.load(it) }
+        loading = true
+        try {
+            applyProperties(properties)
+        } finally {
+            loading = false
+        }
+        hasUnsavedChanges.value = journaled
+        if (journaled) save()
+    }
+
+    private fun applyProperties(properties: Properties) {
         for (property in allProperties) {
             when (property) {
                 is IntegerProperty -> properties[property.name]?.let { v -> property.value = (v as String).toInt() }
@@ -116,7 +208,6 @@ class CycloneConfig(val file: File)
                 else -> properties[property.name]?.let { v -> property.value = v as String }
             }
         }
-        hasUnsavedChanges.value = false
     }
 
     fun getLibraryFiles(): List<CloudFile> {
@@ -148,6 +239,9 @@ class CycloneConfig(val file: File)
 
 
     companion object {
+        /** Number of journal entries after which the settings file is rewritten */
+        const val COMPACT_AFTER = 64
+
         private val GLOBAL_CONFIG = CycloneConfig(getConfigFile("settings.txt"))
         private var INITIALIZED = false
 
@@ -1,68 +1,443 @@
 package player.model
 
+import audio.util.AudioTags
 import cloud.CloudFile
 import javafx.application.Platform
+import javafx.beans.property.ReadOnlyStringProperty
+import javafx.beans.property.SimpleStringProperty
 import javafx.collections.FXCollections
 import javafx.collections.ListChangeListener
 import javafx.collections.ObservableList
-import java.io.File
+import java.io.*
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
 import java.util.*
-import java.util.concurrent.ExecutorService
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Executors
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Logger
 import java.util.stream.Collectors
 
-class MediaLibrary {
+/**
+ * Indexed media file or directory of the library.
+ *
+ * @param modified last modification time in milliseconds. For directories, this changes whenever children are added or removed.
+ * @param tags tags read from the file, `null` for directories and files whose tags could not be read
+ */
+class LibraryEntry(val path: String, val isDirectory: Boolean, val size: Long, val modified: Long, val tags: AudioTags?)
+{
+    /** Title from the tags or inferred from the file name, `null` for directories */
+    val title: String?
+        get() = if (isDirectory) null else tags?.title ?: AudioFiles.inferTitle(path)
+}
+
+
+/**
+ * Counters of a single scan of the library. Updated concurrently by the crawling threads.
+ */
+class IndexingProgress(val root: String)
+{
+    val started = System.nanoTime()
+    val directories = AtomicLong()
+    val unchangedDirectories = AtomicLong()
+    val files = AtomicLong()
+    @Volatile var finished = false
+
+    override fun toString(): String {
+        val seconds = (System.nanoTime() - started) / 1e9
+        val rate = if (seconds > 0) (directories.get() / seconds).toInt() else 0
+        val state = if (finished) "Indexed" else "Indexing"
+        return "$state $root: ${directories.get()} directories (${unchangedDirectories.get()} unchanged), ${files.get()} new or listed files in ${"%.1f".format(seconds)} s, $rate directories/s"
+    }
+}
+
+
+/**
+ * Index of all local media files and directories below the [roots].
+ *
+ * The index is stored in [indexFile] and loaded on creation.
+ * Scans compare against the stored index: every directory is listed together with the attributes of its entries,
+ * and only files whose size or modification time differ from the index are read again.
+ * Tags of new or modified files are read while crawling and cached in [metadata].
+ * While the application runs, changes to the file system are picked up by a [WatchService].
+ *
+ * @param indexFile file to persist the index in, `null` to keep it in memory only
+ * @param metadataFile file to persist the [metadata] in, `null` to keep it in memory only
+ */
+class MediaLibrary(val indexFile: File? = null, metadataFile: File? = null) {
+    companion object {
+        private const val MAGIC = 0x434C4958  // "CLIX"
+        private const val VERSION = 2
+        private const val SAVE_DELAY: Long = 5  // seconds
+        private const val PROGRESS_INTERVAL: Long = 250  // milliseconds
+        private const val SEARCH_PAGE = 100
+        private const val MAX_SEARCH_RESULTS = 2000
+    }
+
     val roots: ObservableList<CloudFile> = FXCollections.observableArrayList()
     val recentlyUsed: ObservableList<CloudFile> = FXCollections.observableArrayList()
     var recentlyUsedSize: Int = 10
+    val metadata = MetadataCache(metadataFile)
+    /** Summary of the current or last scan, updated on the JavaFX application thread */
+    val progress: ReadOnlyStringProperty = SimpleStringProperty("")
 
     /**
-     * Index of all isLocal files and directories that are part of the library.
+     * Index of all local files and directories that are part of the library, by path.
      * Only media files are added, other files are ignored.
+     * Modified by tasks started from the [indexingService] only.
      */
-    private val localIndex: ObservableList<CloudFile> = FXCollections.observableArrayList()
-    private val indexingService: ExecutorService
+    private val index = ConcurrentHashMap<String, LibraryEntry>()
+    private val children = ConcurrentHashMap<String, MutableSet<String>>()  // directory path -> indexed child paths
+    /** Threads crawling directories. Listing is latency-bound on network shares, so more threads than cores are used. */
+    private val crawlers = ForkJoinPool(maxOf(4, 2 * Runtime.getRuntime().availableProcessors()), { pool -> ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool).also { t -> t.name = "Library Crawler ${t.poolIndex}"; t.isDaemon = true } }, null, false)
+    private val indexingService = Executors.newSingleThreadScheduledExecutor { r -> Thread(r, "Index Service").also { t -> t.isDaemon = true } }
+    private val watcher: WatchService? = try { FileSystems.getDefault().newWatchService() } catch (exc: IOException) { null }
+    private val watchedDirectories = HashMap<WatchKey, Path>()  // accessed on the indexingService
+    private var recursiveWatch = true  // whether registering roots covers subdirectories, only supported on some platforms
+    private var saveScheduled = false
+    private val searchIndex = SearchIndex()
+    private val searchService = Executors.newSingleThreadExecutor { r -> Thread(r, "Library Search").also { t -> t.isDaemon = true } }
+    private var currentSearch: AtomicBoolean? = null  // accessed on the JavaFX application thread
+    private val lastProgressUpdate = AtomicLong()
+    private val logger = Logger.getLogger("library")
 
 
     init {
-        indexingService = Executors.newSingleThreadExecutor { r -> Thread(r, "Index Service") }
+        indexingService.submit { metadata.load(); load() }
         roots.addListener{ _: ListChangeListener.Change<out CloudFile> -> updateIndex() }
         recentlyUsed.addListener { _: ListChangeListener.Change<out CloudFile> -> removeDuplicates(recentlyUsed, recentlyUsedSize); }
+        watcher?.let { w -> Thread(Runnable { watch(w) }, "Library Watcher").also { t -> t.isDaemon = true }.start() }
     }
 
+    /**
+     * Searches the library for [pattern] and returns a list that is filled with the results, best matches first.
+     * Results are added in pages of [SEARCH_PAGE] entries; approximate matches follow the exact ones.
+     * Starting a new search cancels the previous one, which stops adding results to its list.
+     * Must be called on the JavaFX application thread.
+     */
     fun startSearch(pattern: String): ObservableList<CloudFile> {
-        val set = FXCollections.observableArrayList<CloudFile>()
-        val lowerPattern = pattern.toLowerCase()
-        Thread {
-            val searchList = localIndex.stream().filter { file -> file.getPath().toLowerCase().contains(lowerPattern) }.collect(Collectors.toList())
-            Platform.runLater{ set.addAll(searchList) }
-        }.start()
-        return set
+        cancelSearch()
+        val result = FXCollections.observableArrayList<CloudFile>()
+        val cancelled = AtomicBoolean()
+        currentSearch = cancelled
+        searchService.submit {
+            if (cancelled.get()) return@submit
+            val started = System.nanoTime()
+            val exact = searchIndex.find(pattern, false, MAX_SEARCH_RESULTS, cancelled)
+            publishResults(exact, result, cancelled)
+            logger.fine("Search for '$pattern' found ${exact.size} results in ${(System.nanoTime() - started) / 1000} µs")
+            if (exact.size < SEARCH_PAGE && !cancelled.get()) {
+                publishResults(searchIndex.find(pattern, true, SEARCH_PAGE, cancelled), result, cancelled)
+            }
+        }
+        return result
+    }
+
+    /**
+     * Stops adding results to the list returned by the last call to [startSearch].
+     */
+    fun cancelSearch() {
+        currentSearch?.set(true)
+        currentSearch = null
+    }
+
+    private fun publishResults(hits: List<SearchIndex.Hit>, result: ObservableList<CloudFile>, cancelled: AtomicBoolean) {
+        for (page in hits.chunked(SEARCH_PAGE)) {
+            if (cancelled.get()) return
+            val files = page.map { hit -> CloudFile(File(hit.path)) }
+            Platform.runLater { if (!cancelled.get()) result.addAll(files) }
+        }
     }
 
     fun isIndexed(file: CloudFile): Boolean {
-        return localIndex.contains(file)
+        return index.containsKey(file.getPath())
+    }
+
+    /**
+     * Returns the title of [file] from its cached tags, or inferred from the file name if the tags have not been read.
+     */
+    fun title(file: CloudFile): String {
+        return metadata.peek(file.getPath())?.title ?: AudioFiles.inferTitle(file.getPath())
     }
 
+    /**
+     * Number of indexed files and directories.
+     */
+    val size: Int
+        get() = index.size
+
 
     private fun updateIndex() {
-        val newIndex = ArrayList<CloudFile>()
+        val localRoots = roots.filter { root -> root.originatesHere() }.map { root -> root.getPath() }
         indexingService.submit {
-            for(root in roots) {
-                if(root.originatesHere()) {
-                    recursiveAdd(root, newIndex)
+            // Drop entries that are no longer below any root
+            val obsolete = index.keys.filter { path -> localRoots.none { root -> isBelow(path, root) } }
+            obsolete.forEach { path -> removeEntry(path) }
+            for (root in localRoots) {
+                logger.info(scan(Paths.get(root)).toString())
+                watch(Paths.get(root))
+            }
+            scheduleSave()
+        }
+    }
+
+    private fun isBelow(path: String, root: String): Boolean {
+        return path == root || path.startsWith(root) && (path[root.length] == File.separatorChar || root.endsWith(File.separator))
+    }
+
+    /**
+     * Brings the index of [path] and everything below up to date. Must be called on the [indexingService].
+     * Directories are crawled in parallel by the [crawlers]; this method blocks until the crawl has finished.
+     *
+     * @param recursive whether to check indexed subdirectories as well; new subdirectories are always crawled
+     */
+    private fun scan(path: Path, recursive: Boolean = true): IndexingProgress {
+        val progress = IndexingProgress(path.toString())
+        crawlers.invoke(ScanTask(path, null, progress, recursive))
+        progress.finished = true
+        publishProgress(progress, true)
+        return progress
+    }
+
+    /**
+     * Crawls [path] and its subdirectories, forking one task per subdirectory.
+     *
+     * @param attributes attributes of [path] if already known from listing its parent
+     * @param recursive whether to crawl subdirectories that are already indexed
+     */
+    private inner class ScanTask(val path: Path, val attributes: BasicFileAttributes?, val progress: IndexingProgress, val recursive: Boolean = true) : RecursiveAction()
+    {
+        override fun compute() {
+            val attributes = this.attributes ?: try {
+                Files.readAttributes(path, BasicFileAttributes::class.java)
+            } catch (exc: IOException) {
+                removeEntry(path.toString())
+                return
+            }
+            if (!attributes.isDirectory) {
+                if (AudioFiles.isAudioFile(path.fileName.toString())) putEntry(fileEntry(path, attributes))
+                return
+            }
+            val subdirectories = scanDirectory(path, attributes)
+            val crawled = if (recursive) subdirectories else subdirectories.filter { (child, _) -> index[child.toString()] == null }
+            invokeAll(crawled.map { (child, childAttributes) -> ScanTask(child, childAttributes, progress) })
+        }
+
+        /**
+         * Indexes the files in [directory] as one batch.
+         * The listing is read even if the directory itself has not been modified, because files may have been rewritten in place.
+         * Files whose size and modification time match the index are kept as they are.
+         *
+         * @return subdirectories to crawl, with their attributes if they were read while listing
+         */
+        private fun scanDirectory(directory: Path, attributes: BasicFileAttributes): List<Pair<Path, BasicFileAttributes?>> {
+            val key = directory.toString()
+            val modified = attributes.lastModifiedTime().toMillis()
+            val existing = index[key]
+            progress.directories.incrementAndGet()
+            if (existing != null && existing.isDirectory && existing.modified == modified) progress.unchangedDirectories.incrementAndGet()
+            val files = ArrayList<LibraryEntry>()
+            val subdirectories = ArrayList<Pair<Path, BasicFileAttributes?>>()
+            try {
+                // The attributes of each entry are read once, on some platforms directly from the directory listing
+                Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption::class.java), 1, object : SimpleFileVisitor<Path>() {
+                    override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                        if (attrs.isDirectory) subdirectories.add(Pair(file, attrs))
+                        else if (AudioFiles.isAudioFile(file.fileName.toString())) files.add(fileEntry(file, attrs))
+                        return FileVisitResult.CONTINUE
+                    }
+
+                    override fun visitFileFailed(file: Path, exc: IOException): FileVisitResult {
+                        logger.fine("Cannot read $file: $exc")
+                        return FileVisitResult.CONTINUE
+                    }
+                })
+            } catch (exc: IOException) {
+                logger.warning("Failed to list $directory: $exc")
+                return emptyList()
+            }
+            if (existing == null || !existing.isDirectory || existing.modified != modified) putEntry(LibraryEntry(key, true, 0, modified, null))
+            files.forEach { entry -> if (index[entry.path] !== entry) putEntry(entry) }
+            val listed = HashSet<String>()
+            files.mapTo(listed) { entry -> entry.path }
+            subdirectories.mapTo(listed) { (child, _) -> child.toString() }
+            for (child in ArrayList(children[key].orEmpty())) {
+                if (child !in listed) removeEntry(child)
+            }
+            progress.files.addAndGet(files.size.toLong())
+            publishProgress(progress, false)
+            return subdirectories
+        }
+
+        private fun fileEntry(file: Path, attrs: BasicFileAttributes): LibraryEntry {
+            val path = file.toString()
+            val modified = attrs.lastModifiedTime().toMillis()
+            val existing = index[path]
+            if (existing != null && !existing.isDirectory && existing.modified == modified && existing.size == attrs.size() && existing.tags != null) return existing
+            return LibraryEntry(path, false, attrs.size(), modified, metadata.get(path, attrs.size(), modified))
+        }
+    }
+
+    /**
+     * Updates [progress] on the JavaFX application thread, at most every [PROGRESS_INTERVAL] milliseconds unless [force] is set.
+     */
+    private fun publishProgress(progress: IndexingProgress, force: Boolean) {
+        val now = System.currentTimeMillis()
+        val last = lastProgressUpdate.get()
+        if (!force && (now - last < PROGRESS_INTERVAL || !lastProgressUpdate.compareAndSet(last, now))) return
+        val snapshot = progress.toString()
+        Platform.runLater { (this.progress as SimpleStringProperty).value = snapshot }
+    }
+
+    private fun putEntry(entry: LibraryEntry) {
+        index[entry.path] = entry
+        searchIndex.put(entry)
+        File(entry.path).parent?.let { parent -> children.computeIfAbsent(parent) { ConcurrentHashMap.newKeySet() }.add(entry.path) }
+    }
+
+    private fun removeEntry(path: String) {
+        index.remove(path) ?: return
+        searchIndex.remove(path)
+        metadata.remove(path)
+        File(path).parent?.let { parent -> children[parent]?.remove(path) }
+        children.remove(path)?.forEach { child -> removeEntry(child) }
+    }
+
+
+    // Watching
+
+    /**
+     * Registers [root] with the [watcher]. Where supported, a single registration covers the whole tree.
+     * Must be called on the [indexingService] after [root] has been scanned.
+     */
+    private fun watch(root: Path) {
+        val watcher = this.watcher ?: return
+        if (watchedDirectories.values.contains(root)) return
+        val kinds = arrayOf(StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY)
+        if (recursiveWatch) {
+            try {
+                @Suppress("UNCHECKED_CAST")
+                val fileTree = Class.forName("com.sun.nio.file.ExtendedWatchEventModifier").getField("FILE_TREE").get(null) as WatchEvent.Modifier
+                watchedDirectories[root.register(watcher, kinds, fileTree)] = root
+                return
+            } catch (exc: Exception) {
+                recursiveWatch = false  // not supported on this platform, register every directory
+            }
+        }
+        for ((path, entry) in index) {
+            if (entry.isDirectory && isBelow(path, root.toString())) watchDirectory(Paths.get(path))
+        }
+    }
+
+    private fun watchDirectory(directory: Path) {
+        val watcher = this.watcher ?: return
+        try {
+            val key = directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY)
+            watchedDirectories[key] = directory
+        } catch (exc: IOException) {
+            logger.warning("Cannot watch $directory: $exc")
+        }
+    }
+
+    /**
+     * Receives file system events and passes them to the [indexingService]. Runs on the watcher thread.
+     */
+    private fun watch(watcher: WatchService) {
+        while (true) {
+            val key = try { watcher.take() } catch (exc: InterruptedException) { return } catch (exc: ClosedWatchServiceException) { return }
+            val events = key.pollEvents()
+            key.reset()
+            indexingService.submit { handleEvents(key, events) }
+        }
+    }
+
+    private fun handleEvents(key: WatchKey, events: List<WatchEvent<*>>) {
+        val directory = watchedDirectories[key] ?: return
+        if (!key.isValid) watchedDirectories.remove(key)
+        for (event in events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                scan(directory)
+                continue
+            }
+            val path = directory.resolve(event.context() as Path)
+            if (roots.none { root -> root.originatesHere() && isBelow(path.toString(), root.getPath()) }) continue
+            val before = index.size
+            if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                scan(path, false)  // re-reads the attributes and tags of a modified file or the listing of a modified directory
+            } else {
+                // The parent listing changed, so rescan the parent to update its modification time as well
+                val parent = path.parent
+                scan(if (parent != null && index[parent.toString()] != null) parent else path, false)
+            }
+            if (!recursiveWatch && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && index[path.toString()]?.isDirectory == true) {
+                for ((childPath, entry) in index) {
+                    if (entry.isDirectory && isBelow(childPath, path.toString())) watchDirectory(Paths.get(childPath))
+                }
+            }
+            logger.fine("${event.kind()} $path, index size $before -> ${index.size}")
+        }
+        scheduleSave()
+    }
+
+
+    // Persistence
+
+    private fun scheduleSave() {
+        if (indexFile == null || saveScheduled) return
+        saveScheduled = true
+        indexingService.schedule(Runnable { saveScheduled = false; save() }, SAVE_DELAY, TimeUnit.SECONDS)
+    }
+
+    private fun save() {
+        metadata.save()
+        val indexFile = this.indexFile ?: return
+        try {
+            indexFile.parentFile?.mkdirs()
+            val tmp = File(indexFile.path + ".tmp")
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp), 64 * 1024)).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+                out.writeInt(index.size)
+                for (entry in index.values) {
+                    out.writeUTF(entry.path)
+                    out.writeBoolean(entry.isDirectory)
+                    out.writeLong(entry.size)
+                    out.writeLong(entry.modified)
                 }
             }
-            localIndex.setAll(newIndex)
+            Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (exc: IOException) {
+            logger.warning("Failed to save library index to $indexFile: $exc")
         }
     }
 
-    private fun recursiveAdd(file: CloudFile, list: MutableCollection<CloudFile>) {
-        if (file in list) return
-        if(file.isDirectory() or AudioFiles.isAudioFile(file.getName()))
-            list.add(file)
-        if(file.isDirectory()) {
-            File(file.getPath()).listFiles()!!.forEach { child -> recursiveAdd(CloudFile(child), list) }
+    private fun load() {
+        val indexFile = this.indexFile ?: return
+        if (!indexFile.exists()) return
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(indexFile), 64 * 1024)).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    logger.warning("Ignoring $indexFile: unknown format")
+                    return
+                }
+                val count = input.readInt()
+                for (i in 0 until count) {
+                    val path = input.readUTF()
+                    val isDirectory = input.readBoolean()
+                    val size = input.readLong()
+                    val modified = input.readLong()
+                    putEntry(LibraryEntry(path, isDirectory, size, modified, if (isDirectory) null else metadata.peek(path, size, modified)))
+                }
+            }
+            logger.info("Loaded ${index.size} library entries from $indexFile")
+        } catch (exc: IOException) {
+            logger.warning("Failed to load library index from $indexFile: $exc")
+            index.clear()
+            children.clear()
         }
     }
 
@@ -3,27 +3,30 @@ package player.model
 import cloud.Cloud
 import cloud.CloudFile
 import cloud.SynchronizedData
+import cloud.SynchronizedOperation
+import javafx.animation.AnimationTimer
 import javafx.application.Platform
 import javafx.beans.InvalidationListener
 import javafx.beans.binding.Bindings
 import javafx.beans.property.*
 import javafx.beans.value.ChangeListener
 import javafx.beans.value.ObservableBooleanValue
-import javafx.collections.FXCollections
 import javafx.collections.ListChangeListener
 import javafx.collections.ObservableList
 import player.CastToBooleanProperty
 import player.CastToDoubleProperty
 import player.CastToStringProperty
 import player.CustomObjectProperty
+import player.IncrementalList
 import player.model.data.MasterGain
 import player.model.data.PlayTask
 import player.model.data.PlayTaskStatus
+import player.model.data.PlaylistEntry
+import player.model.data.PlaylistKeys
 import player.model.data.Speaker
+import player.model.data.Stamp
 import java.io.File
 import java.util.concurrent.Callable
-import java.util.concurrent.Executors
-import java.util.concurrent.TimeUnit
 import java.util.function.Consumer
 import java.util.function.Function
 import java.util.function.Supplier
@@ -37,16 +40,202 @@ import kotlin.math.abs
 class PlayerData
 {
 
-    data class Playlist(val files: List<CloudFile>) : SynchronizedData()
+    /**
+     * Ordered list of files, replicated as a sequence CRDT.
+     *
+     * Changes are sent to other peers as [Put], [Remove] and [Replace] operations which address entries by their stable ID.
+     * Each entry is a last-writer-wins register holding its file and position, removed entries are remembered as tombstones.
+     * Since each peer sees the entries created by another peer in the order of their counters, removals can also be summarized per peer in [cleared].
+     * Tombstones are folded into [cleared] once no live entry of their peer has a lower counter.
+     * All operations commute, so peers that received the same operations in any order have equal playlists.
+     *
+     * Use [insert], [move], [remove] and [replace] to create operations and push them with [cloud.Cloud.pushOperation].
+     *
+     * @param entries live entries in playlist order
+     * @param removed IDs of removed entries that are not covered by [cleared]
+     * @param cleared maps peer IDs to the counter up to which all entries created by that peer have been removed
+     * @param clock highest stamp counter seen, see [Stamp.next]
+     */
+    class Playlist(val entries: List<PlaylistEntry>, val removed: Set<Stamp>, val cleared: Map<String, Long>, val clock: Long) : SynchronizedData()
     {
-        constructor() : this(emptyList())
+        constructor() : this(emptyList(), emptySet(), emptyMap(), 0)
+
+        @Volatile @Transient private var fileList: List<CloudFile>? = null
+        @Volatile @Transient private var idIndex: Map<Stamp, Int>? = null
+        @Volatile @Transient private var fileIndex: Map<CloudFile, Int>? = null
+
+        val files: List<CloudFile>
+            get() = fileList ?: entries.map { e -> e.file }.also { fileList = it }
+
+        val size: Int
+            get() = entries.size
+
+        /**
+         * Returns the index of the entry with the given ID or -1. Runs in constant time.
+         */
+        fun indexOf(id: Stamp): Int {
+            val index = idIndex ?: HashMap<Stamp, Int>(entries.size * 2).also { map -> entries.forEachIndexed { i, e -> map[e.id] = i }; idIndex = map }
+            return index[id] ?: -1
+        }
+
+        /**
+         * Returns the index of the first entry holding [file] or -1. Runs in constant time.
+         */
+        fun indexOf(file: CloudFile): Int {
+            val index = fileIndex ?: HashMap<CloudFile, Int>(entries.size * 2).also { map -> entries.forEachIndexed { i, e -> map.putIfAbsent(e.file, i) }; fileIndex = map }
+            return index[file] ?: -1
+        }
+
+        // Operation factories
+
+        fun insert(index: Int, files: List<CloudFile>, peer: String): Put {
+            val after = if (index > 0) entries[index - 1].key else ""
+            val before = if (index < entries.size) entries[index].key else null
+            val keys = if (before == null && files.size == 1) listOf(PlaylistKeys.after(after)) else PlaylistKeys.between(after, before, files.size)
+            var stamp = Stamp.next(peer, clock)
+            val added = files.mapIndexed { i, file -> if (i > 0) stamp = Stamp.next(peer, stamp.counter); PlaylistEntry(stamp, file, keys[i], stamp) }
+            return Put(added)
+        }
+
+        fun append(files: List<CloudFile>, peer: String): Put {
+            return insert(entries.size, files, peer)
+        }
+
+        /**
+         * Moves the entries with the given IDs to [index], keeping their relative order.
+         *
+         * @param index insertion index in the playlist without the moved entries
+         */
+        fun move(ids: Collection<Stamp>, index: Int, peer: String): Put {
+            val moving = entries.filter { e -> e.id in ids }
+            val others = entries.filter { e -> e.id !in ids }
+            val after = if (index > 0) others[index - 1].key else ""
+            val before = if (index < others.size) others[index].key else null
+            val keys = PlaylistKeys.between(after, before, moving.size)
+            val stamp = Stamp.next(peer, clock)
+            return Put(moving.mapIndexed { i, e -> PlaylistEntry(e.id, e.file, keys[i], stamp) })
+        }
 
+        fun remove(ids: Collection<Stamp>): Remove {
+            return Remove(ids.toList())
+        }
+
+        /**
+         * Removes all entries seen so far and adds [files].
+         */
+        fun replace(files: List<CloudFile>, peer: String): Replace {
+            val seen = HashMap(cleared)
+            for (id in entries.map { e -> e.id } + removed) seen[id.peer] = maxOf(seen[id.peer] ?: 0L, id.counter)
+            val keys = PlaylistKeys.between("", null, files.size)
+            var entryStamp = Stamp.next(peer, clock)
+            return Replace(seen, files.mapIndexed { i, file -> if (i > 0) entryStamp = Stamp.next(peer, entryStamp.counter); PlaylistEntry(entryStamp, file, keys[i], entryStamp) })
+        }
+
+        // Application of operations
+
+        private fun isLive(id: Stamp): Boolean {
+            return id !in removed && id.counter > (cleared[id.peer] ?: 0L)
+        }
+
+        private fun withPut(put: Collection<PlaylistEntry>): Playlist {
+            val incoming = HashMap<Stamp, PlaylistEntry>()
+            var clock = this.clock
+            for (entry in put) {
+                clock = maxOf(clock, entry.id.counter, entry.moved.counter)
+                if (!isLive(entry.id)) continue
+                val index = indexOf(entry.id)
+                if (index >= 0 && entries[index].moved >= entry.moved) continue
+                val previous = incoming[entry.id]
+                if (previous == null || entry.moved > previous.moved) incoming[entry.id] = entry
+            }
+            if (incoming.isEmpty()) return if (clock == this.clock) this else Playlist(entries, removed, cleared, clock)
+            // Merge the sorted new entries into the remaining ones in linear time
+            val added = incoming.values.sorted()
+            val merged = ArrayList<PlaylistEntry>(entries.size + added.size)
+            var a = 0
+            for (entry in entries) {
+                if (entry.id in incoming) continue
+                while (a < added.size && added[a] < entry) merged.add(added[a++])
+                merged.add(entry)
+            }
+            while (a < added.size) merged.add(added[a++])
+            return Playlist(merged, removed, cleared, clock)
+        }
+
+        private fun withRemoved(ids: Collection<Stamp>): Playlist {
+            val live = ids.filter { id -> isLive(id) }.toSet()
+            val clock = maxOf(this.clock, ids.map { id -> id.counter }.max() ?: 0)
+            if (live.isEmpty()) return if (clock == this.clock) this else Playlist(entries, removed, cleared, clock)
+            return Playlist(entries.filter { e -> e.id !in live }, removed + live, cleared, clock).folded()
+        }
+
+        private fun withCleared(vector: Map<String, Long>): Playlist {
+            if (vector.all { (peer, counter) -> counter <= (cleared[peer] ?: 0L) }) return this
+            val merged = HashMap(cleared)
+            for ((peer, counter) in vector) if (counter > (merged[peer] ?: 0L)) merged[peer] = counter
+            val clock = maxOf(this.clock, vector.values.max() ?: 0L)
+            return Playlist(entries.filter { e -> e.id.counter > (merged[e.id.peer] ?: 0L) }, removed.filter { id -> id.counter > (merged[id.peer] ?: 0L) }.toSet(), merged, clock).folded()
+        }
+
+        /**
+         * Replaces the tombstones of each peer that are older than all its live entries by its entry in [cleared].
+         */
+        private fun folded(): Playlist {
+            if (removed.isEmpty()) return this
+            val oldestLive = HashMap<String, Long>()
+            for (entry in entries) oldestLive[entry.id.peer] = minOf(oldestLive[entry.id.peer] ?: Long.MAX_VALUE, entry.id.counter)
+            val cleared = HashMap(this.cleared)
+            val kept = HashSet<Stamp>()
+            for (id in removed) {
+                if (id.counter < (oldestLive[id.peer] ?: Long.MAX_VALUE)) cleared[id.peer] = maxOf(cleared[id.peer] ?: 0L, id.counter)
+                else kept.add(id)
+            }
+            return if (kept.size == removed.size) this else Playlist(entries, kept, cleared, clock)
+        }
+
+        /**
+         * Merges both versions. The result contains the effects of all operations applied to either version.
+         */
         override fun resolveConflict(other: SynchronizedData): SynchronizedData {
-            return if (files.isEmpty()) other else this
+            other as Playlist
+            return withCleared(other.cleared).withRemoved(other.removed).withPut(other.entries)
         }
 
         override fun fromFile(): SynchronizedData? {
-            return Playlist(files.filter { f -> f.originatesHere() })
+            return Playlist(entries.filter { e -> e.file.originatesHere() }, removed, cleared, clock)
+        }
+
+        override fun toString(): String {
+            return "Playlist(${entries.size} entries, ${removed.size} removed, cleared $cleared)"
+        }
+
+
+        /**
+         * Adds entries or updates their position. Of two versions of an entry, the one with the greater [PlaylistEntry.moved] is kept.
+         */
+        class Put(val entries: List<PlaylistEntry>) : SynchronizedOperation<Playlist>(Playlist::class.java)
+        {
+            override fun applyTo(data: Playlist) = data.withPut(entries)
+
+            override fun toString() = "Put(${entries.size} entries)"
+        }
+
+        class Remove(val ids: List<Stamp>) : SynchronizedOperation<Playlist>(Playlist::class.java)
+        {
+            override fun applyTo(data: Playlist) = data.withRemoved(ids)
+
+            override fun toString() = "Remove(${ids.size} entries)"
+        }
+
+        /**
+         * Removes all entries whose counter is at most the one given for their creating peer in [cleared], and adds new ones.
+         * Entries added concurrently by other peers were not yet seen by the replacing peer and therefore have greater counters, so they are kept.
+         */
+        class Replace(val cleared: Map<String, Long>, val entries: List<PlaylistEntry>) : SynchronizedOperation<Playlist>(Playlist::class.java)
+        {
+            override fun applyTo(data: Playlist) = data.withCleared(cleared).withPut(entries)
+
+            override fun toString() = "Replace(${entries.size} entries)"
         }
     }
 
@@ -110,7 +299,7 @@ class PlayerData
  * Issues tasks to the cloud, interprets results for simple displaying.
  */
 class PlaylistPlayer(val cloud: Cloud, val config: CycloneConfig) {
-    val library: MediaLibrary = MediaLibrary()
+    val library: MediaLibrary = MediaLibrary(getConfigFile("library.idx"), getConfigFile("metadata.bin"))
     private var jumpCount: Long = 0
     private val builder = TaskChainBuilder(cloud, Function { file -> after(file) }, CREATOR)
 
@@ -119,6 +308,7 @@ class PlaylistPlayer(val cloud: Cloud, val config: CycloneConfig) {
     private val shuffledData = cloud.getSynchronized(PlayerData.Shuffled::class.java, Platform::runLater)
     private val gainData = cloud.getSynchronized(MasterGain::class.java, Platform::runLater)
     private val playlistData = cloud.getSynchronized(PlayerData.Playlist::class.java, Platform::runLater)
+    private val playlistState = cloud.getSynchronized(PlayerData.Playlist::class.java, null)  // always up to date, used to create operations
     private val speakerData = cloud.getSynchronized(PlayerData.Target::class.java, Platform::runLater)
     private val pausedData = cloud.getSynchronized(PlayerData.Paused::class.java, Platform::runLater)
     private val selectedFile = cloud.getSynchronized(PlayerData.SelectedFile::class.java, Platform::runLater)
@@ -142,7 +332,7 @@ class PlaylistPlayer(val cloud: Cloud, val config: CycloneConfig) {
     val gainProperty: DoubleProperty = CastToDoubleProperty(CustomObjectProperty<Number?>(listOf(gainData),
             getter = Supplier<Number?> { gainData.value?.value ?: 0 },
             setter = Consumer { value -> cloud.pushSynchronized(MasterGain(value!!.toDouble())) }))
-    val playlist: ObservableList<CloudFile> = FXCollections.observableArrayList(playlistData.value.files)
+    val playlist = IncrementalList(playlistData.value.files)
     val speakerProperty: ObjectProperty<Speaker?> = CustomObjectProperty<Speaker?>(listOf(speakerData),
             getter = Supplier { speakerData.value?.value },
             setter = Consumer { value -> updateSelectedFile(false); cloud.pushSynchronized(PlayerData.Target(value)) })
@@ -161,7 +351,7 @@ class PlaylistPlayer(val cloud: Cloud, val config: CycloneConfig) {
             setter = Consumer { throw UnsupportedOperationException() }))  // this is a read-only property
     val titleProperty: ReadOnlyStringProperty = CastToStringProperty(CustomObjectProperty<String>(listOf(status),
             getter = Supplier {
-                status.value?.message() ?: AudioFiles.inferTitle(status.value?.task?.file?.getPath())
+                status.value?.message() ?: status.value?.task?.file?.let { file -> library.title(file) }
             },
             setter = Consumer { throw UnsupportedOperationException() }))  // this is a read-only property
     val playingProperty: BooleanProperty = CastToBooleanProperty(CustomObjectProperty<Boolean?>(listOf(pausedData),
@@ -170,12 +360,26 @@ class PlaylistPlayer(val cloud: Cloud, val config: CycloneConfig) {
     val isFileSelectedProperty: ObservableBooleanValue = Bindings.createBooleanBinding(Callable{ selectedFile.value.file != null }, currentFileProperty)
     val playlistAvailableProperty: ObservableBooleanValue = Bindings.createBooleanBinding(Callable{ playlist.size > 1 }, playlist)
 
+    // Position observation, accessed on the JavaFX application thread
+    private val positionIntervals = ArrayList<Double>()
+    private var lastPositionUpdate = 0L
+    private val positionTimer = object : AnimationTimer() {
+        override fun handle(now: Long) {
+            val interval = positionIntervals.min() ?: return
+            if (now - lastPositionUpdate >= interval * 1e9) {
+                lastPositionUpdate = now
+                (positionProperty.property as CustomObjectProperty).invalidate()
+            }
+        }
+    }
+
 
     init {
         library.roots.addAll(config.getLibraryFiles())
         library.roots.addListener(ListChangeListener<CloudFile> { config.setLibraryFiles(library.roots) })
+        builder.startDelay.bind(config.startDelay)
 
-        playlistData.addListener(ChangeListener{ _, _, _ -> playlist.setAll(playlistData.value?.files ?: emptyList())})
+        playlistData.addListener(ChangeListener{ _, _, _ -> playlist.update(playlistData.value?.files ?: emptyList())})
 
         for(obs in listOf(loopingData, shuffledData, playlistData, pausedData, selectedFile, speakerData)) {
             obs.addListener { _ -> updateTasks() }
@@ -184,49 +388,75 @@ class PlaylistPlayer(val cloud: Cloud, val config: CycloneConfig) {
         pickSpeaker()
         speakers.addListener { _: ListChangeListener.Change<out Speaker>? -> pickSpeaker()}
 
-
-        Executors.newScheduledThreadPool(1).scheduleAtFixedRate({
-            if (playingProperty.value) {
-                Platform.runLater { (positionProperty.property as CustomObjectProperty).invalidate() }
-            }
-        }, 50, 50, TimeUnit.MILLISECONDS)
+        playingProperty.addListener(InvalidationListener { updatePositionTimer() })
 
         status.addListener( InvalidationListener { updateSelectedFile() })
     }
 
 
+    /**
+     * Requests that [positionProperty] is refreshed at least every [interval] seconds while playing.
+     * Refreshes happen on JavaFX pulses and only while at least one observation is open.
+     * Must be called on the JavaFX application thread.
+     *
+     * @return handle that ends the observation when closed
+     */
+    fun observePosition(interval: Double): AutoCloseable {
+        positionIntervals.add(interval)
+        updatePositionTimer()
+        var open = true
+        return AutoCloseable {
+            if (open) {
+                open = false
+                positionIntervals.remove(interval)
+                updatePositionTimer()
+            }
+        }
+    }
+
+    private fun updatePositionTimer() {
+        if (positionIntervals.isNotEmpty() && playingProperty.value) positionTimer.start()
+        else positionTimer.stop()
+    }
+
     fun stop() {
         playingProperty.set(false)
         positionProperty.set(0.0)
     }
 
     fun addToPlaylist(files: List<CloudFile>) {
-        val newList = ArrayList(playlist)
-        newList.addAll(if(shuffledProperty.value) files.shuffled() else files)
-        setPlaylist(newList)
+        cloud.pushOperation(playlistState.value.append(if(shuffledProperty.value) files.shuffled() else files, cloud.localPeer.id))
     }
 
     fun setPlaylist(files: List<CloudFile>) {
-        cloud.pushSynchronized(PlayerData.Playlist(if(shuffledProperty.value) files.shuffled() else files))
+        cloud.pushOperation(playlistState.value.replace(if(shuffledProperty.value) files.shuffled() else files, cloud.localPeer.id))
         playingProperty.set(true);
     }
 
+    fun clearPlaylist() {
+        cloud.pushOperation(playlistState.value.replace(emptyList(), cloud.localPeer.id))
+    }
+
     fun getNext(): CloudFile? {
         return after(currentFileProperty.value)
     }
 
     fun after(file: CloudFile?): CloudFile? {
+        val data = playlistState.value
+        val playlist = data.files
         if (playlist.isEmpty()) return null
         if (file == null) return playlist[0]
-        val index = playlist.indexOf(file)
+        val index = data.indexOf(file)
         if (index < 0) return null
-        return if (index < playlist.size - 1) playlist[index + 1]!! else if (loopingData.value.value) playlist[0] else null
+        return if (index < playlist.size - 1) playlist[index + 1] else if (loopingData.value.value) playlist[0] else null
     }
 
     fun getPrevious(): CloudFile? {
+        val data = playlistState.value
+        val playlist = data.files
         if (playlist.isEmpty()) return null
-        if (currentFileProperty.value == null) return playlist[playlist.size - 1]
-        val index = playlist.indexOf(currentFileProperty.value)
+        val current = currentFileProperty.value ?: return playlist[playlist.size - 1]
+        val index = data.indexOf(current)
         if (index < 0) return null
         return if (index > 0) playlist[index -1] else if (loopingProperty.value) playlist[playlist.size - 1] else null
     }
@@ -242,13 +472,17 @@ class PlaylistPlayer(val cloud: Cloud, val config: CycloneConfig) {
     fun removeCurrentFileFromPlaylist() {
         if (currentFileProperty.get() == null)
             return
-        val index = playlist.indexOf(currentFileProperty.get())
-        playlist.remove(currentFileProperty.get())
-        if(playlist.size > index) {
-            currentFileProperty.set(playlist[index])
+        val data = playlistState.value
+        val index = data.indexOf(currentFileProperty.get()!!)
+        if (index < 0)
+            return
+        cloud.pushOperation(data.remove(listOf(data.entries[index].id)))
+        val remaining = data.files.size - 1
+        if(remaining > index) {
+            currentFileProperty.set(data.files[index + 1])
         } else {
-            if(loopingProperty.get() && playlist.isNotEmpty()) {
-                currentFileProperty.set(playlist[0])
+            if(loopingProperty.get() && remaining > 0) {
+                currentFileProperty.set(data.files[0])
             } else {
                 currentFileProperty.set(null)
             }
@@ -18,6 +18,9 @@ import kotlin.collections.ArrayList
 
 /**
  * @param maxTasks number of tasks that can be pushed to the cloud at the same time, must be >= 1
+ *
+ * Tasks started by [play] on a remote speaker are scheduled [startDelay] seconds ahead so that the remote device has time to receive and prepare them.
+ * Tasks on local speakers start immediately.
  */
 class TaskChainBuilder(val cloud: Cloud, val fileChain: Function<CloudFile, CloudFile?>, val creator: String, val maxTasks: Int = 3)
 {
@@ -31,6 +34,7 @@ class TaskChainBuilder(val cloud: Cloud, val fileChain: Function<CloudFile, Clou
     val finishedFlag = SimpleBooleanProperty(false)
     val balance = SimpleDoubleProperty(0.0)
     val gain = SimpleDoubleProperty(0.0)
+    val startDelay = SimpleDoubleProperty(0.3)
 
 
     init {
@@ -79,26 +83,27 @@ class TaskChainBuilder(val cloud: Cloud, val fileChain: Function<CloudFile, Clou
      * Starts playing the chain from the given position.
      */
     fun play(file: CloudFile, position: Double) {
-        this.speaker ?: throw IllegalStateException("No speaker set")
+        val speaker = this.speaker ?: throw IllegalStateException("No speaker set")
+        val startAt = if (startDelay.value > 0 && !speaker.peer.isLocal) System.currentTimeMillis() + (startDelay.value * 1000).toLong() else null
         when {
             tasks.isEmpty() -> {
-                tasks.add(createTask(file, position, 0, null, newId()))
+                tasks.add(createTask(file, position, 0, null, newId(), startAt))
             }
             tasks.firstOrNull()?.file == file -> {  // is this the active task? -> keep it
                 // jump within file
-                tasks[0] = createTask(file, position, tasks[0].restartCount + 1, null, tasks[0].id)
+                tasks[0] = createTask(file, position, tasks[0].restartCount + 1, null, tasks[0].id, startAt)
             }
             else -> {  // is this a scheduled task? Move forward, remove trigger, remove previous
                 for (task in ArrayList(tasks)) {
                     if (task.file == file) {
-                        tasks[0] = createTask(file, position, task.restartCount, null, task.id)
+                        tasks[0] = createTask(file, position, task.restartCount, null, task.id, startAt)
                         break
                     } else {
                         tasks.removeAt(0)
                     }
                 }
                 if (tasks.isEmpty()) {
-                    tasks.add(createTask(file, position, 0, null, newId()))
+                    tasks.add(createTask(file, position, 0, null, newId(), startAt))
                 }
             }
         }
@@ -119,7 +124,7 @@ class TaskChainBuilder(val cloud: Cloud, val fileChain: Function<CloudFile, Clou
         // Go through the list of tasks. Do tasks have to be altered? Do they still match the playlist or do we have to discard part of the chain?
         for ((index, task) in tasks.withIndex()) {
             // Adjust this task's properties, file should be correct
-            val adjustedTask = createTask(task.file, task.position, task.restartCount, if(index > 0) task.trigger else null, task.id)
+            val adjustedTask = createTask(task.file, task.position, task.restartCount, if(index > 0) task.trigger else null, task.id, task.startAt)
             tasks[index] = adjustedTask
 
             // Check whether next task should be discarded
@@ -154,9 +159,9 @@ class TaskChainBuilder(val cloud: Cloud, val fileChain: Function<CloudFile, Clou
     }
 
 
-    private fun createTask(file: CloudFile, position: Double, restartCount: Int, trigger: TaskTrigger?, id: String): PlayTask {
+    private fun createTask(file: CloudFile, position: Double, restartCount: Int, trigger: TaskTrigger?, id: String, startAt: Long? = null): PlayTask {
         val paused = if (pauseOnFinish.value && trigger != null) true else paused.value
-        return PlayTask(speaker!!, file, gain.value, false, balance.value, position, restartCount, null, creator, paused, trigger, id)
+        return PlayTask(speaker!!, file, gain.value, false, balance.value, position, restartCount, null, creator, paused, trigger, id, startAt)
     }
 
 
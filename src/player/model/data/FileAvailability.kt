@@ -0,0 +1,28 @@
+package player.model.data
+
+import cloud.CloudFile
+import cloud.Data
+import java.util.*
+
+/**
+ * Advertises that a peer holds a copy of a remote file, either completely or in parts.
+ * Other peers can then download chunks from [copy] instead of the origin of the file.
+ *
+ * @param key identifies the original file, see [player.model.playback.RemoteFileCache.key]
+ * @param copy local copy on the advertising peer
+ * @param size size of the original file in bytes
+ * @param chunkSize size of the chunks in [chunks]
+ * @param chunks indices of chunks that are available, null if the whole file is available
+ */
+data class FileAvailability(
+        val key: String,
+        val copy: CloudFile,
+        val size: Long,
+        val chunkSize: Int,
+        val chunks: BitSet?
+) : Data()
+{
+    fun hasChunk(index: Int): Boolean {
+        return chunks?.get(index) ?: true
+    }
+}
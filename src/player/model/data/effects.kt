@@ -0,0 +1,18 @@
+package player.model.data
+
+import cloud.CloudFile
+import cloud.Data
+
+/**
+ * Announces a sound effect that may be fired on [target] at any time.
+ * The peer owning [target] keeps [file] decoded and ready to play while this data exists.
+ * Effects are fired by sending a message to that peer, see [player.model.playback.EffectBank].
+ *
+ * @param id identifies the effect in fire messages
+ * @param voices number of times the effect can play simultaneously
+ */
+data class ArmedEffect(
+        val id: String,
+        val target: Speaker,
+        val file: CloudFile,
+        val voices: Int = 2) : Data()
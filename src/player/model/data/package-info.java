@@ -7,5 +7,7 @@
  * - Task[]: holds instructions for PlaybackEngine
  * - TaskStatus[]  PlaybackEngine feeds current information here
  * - Speaker[]
+ * - FileAvailability[]: copies of remote files held by each peer
+ * - ArmedEffect[]: sound effects kept ready by the PlaybackEngine of the target speaker
  */
 package player.model.data;
\ No newline at end of file
@@ -0,0 +1,118 @@
+package player.model.data
+
+import cloud.CloudFile
+import java.io.Serializable
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Lamport timestamp identifying playlist entries and ordering changes made to them.
+ * Stamps are totally ordered by [counter], ties are broken by [peer].
+ *
+ * @param peer ID of the peer that created the stamp
+ */
+data class Stamp(val counter: Long, val peer: String) : Comparable<Stamp>, Serializable
+{
+    companion object {
+        private val lastCounter = AtomicLong()
+
+        /**
+         * Creates a stamp that is greater than all stamps created before on this machine and than [observed].
+         *
+         * @param observed highest counter of all stamps known to the caller
+         */
+        fun next(peer: String, observed: Long): Stamp {
+            return Stamp(lastCounter.updateAndGet { c -> maxOf(c, observed) + 1 }, peer)
+        }
+    }
+
+    override fun compareTo(other: Stamp): Int {
+        return if (counter != other.counter) counter.compareTo(other.counter) else peer.compareTo(other.peer)
+    }
+}
+
+
+/**
+ * Position of [file] in a playlist.
+ * Entries are ordered by their [key], entries with equal keys by [id].
+ *
+ * @param id stable identifier of this entry, assigned when the file was added
+ * @param key fractional position, see [PlaylistKeys]
+ * @param moved stamp of the change that assigned [key]. Of two versions of an entry, the one with the greater stamp wins.
+ */
+class PlaylistEntry(val id: Stamp, val file: CloudFile, val key: String, val moved: Stamp) : Comparable<PlaylistEntry>, Serializable
+{
+    override fun compareTo(other: PlaylistEntry): Int {
+        val byKey = key.compareTo(other.key)
+        return if (byKey != 0) byKey else id.compareTo(other.id)
+    }
+
+    override fun toString(): String {
+        return "$file@$key"
+    }
+}
+
+
+/**
+ * Generates fractional positions for [PlaylistEntry.key].
+ *
+ * Keys are strings of printable ASCII digits interpreted as the fraction digits of a number between 0 and 1.
+ * A key never ends with the lowest digit so that a new key can be found between any two distinct keys.
+ * The empty string is used as the lower bound and `null` as the upper bound.
+ */
+object PlaylistKeys
+{
+    private const val FIRST = '!'
+    private const val BASE = '~' - '!' + 1
+
+    /**
+     * Returns a key greater than [after] and less than [before].
+     * If the keys are equal or out of order, a key greater than [after] is returned.
+     */
+    fun between(after: String, before: String?): String {
+        var upper = if (before != null && before > after) before else null
+        val result = StringBuilder()
+        var i = 0
+        while (true) {
+            val low = if (i < after.length) after[i] - FIRST else 0
+            val high = if (upper != null && i < upper.length) upper[i] - FIRST else BASE
+            if (high - low > 1) {
+                result.append(FIRST + (low + high) / 2)
+                return result.toString()
+            }
+            result.append(FIRST + low)
+            if (high - low == 1) upper = null  // every continuation of the result is less than upper
+            i++
+        }
+    }
+
+    /**
+     * Returns a short key greater than [key] for appending.
+     * Repeated appends grow the key by one character every [BASE] calls.
+     */
+    fun after(key: String): String {
+        for (i in key.indices) {
+            val digit = key[i] - FIRST
+            if (digit < BASE - 1) return key.substring(0, i) + (FIRST + digit + 1)
+        }
+        return between(key, null)
+    }
+
+    /**
+     * Returns [count] ascending keys between [after] and [before].
+     * The keys are spread evenly so that their length grows only logarithmically with [count].
+     */
+    fun between(after: String, before: String?, count: Int): List<String> {
+        val result = ArrayList<String>(count)
+        fill(after, before, count, result)
+        return result
+    }
+
+    private fun fill(after: String, before: String?, count: Int, into: MutableList<String>) {
+        if (count <= 0) return
+        val middle = between(after, before)
+        val below = (count - 1) / 2
+        fill(after, middle, below, into)
+        into.add(middle)
+        fill(middle, before, count - 1 - below, into)
+    }
+}
@@ -2,6 +2,7 @@ package player.model.data
 
 import cloud.CloudFile
 import cloud.Data
+import cloud.DeserializerThread
 import cloud.SynchronizedData
 import java.io.ObjectInputStream
 import java.io.ObjectOutputStream
@@ -31,6 +32,9 @@ data class MasterGain(val value: Double) : SynchronizedData()
  * This cannot be used to revive tasks that are already finished.
  * @param trigger References another task that must finish before this one is started.
  * Both tasks must have the same target as this task.
+ * @param startAt time (in milliseconds) at which playback of [position] should be heard, `null` to start as soon as possible.
+ * The time refers to the clock of the peer that published the task and is converted to the clock of the receiving peer.
+ * Devices that receive tasks with the same [startAt] play in sync.
  */
 data class PlayTask(
         val target: Speaker,
@@ -44,7 +48,8 @@ data class PlayTask(
         val creator: String,
         val paused: Boolean,
         val trigger: TaskTrigger?,
-        val id: String
+        val id: String,
+        var startAt: Long? = null
 ) : Data()
 {
     override fun equals(other: Any?): Boolean {
@@ -59,12 +64,37 @@ data class PlayTask(
     override fun hashCode(): Int {
         return id.hashCode()
     }
+
+    private fun writeObject(stream: ObjectOutputStream) {
+        stream.defaultWriteObject()
+    }
+
+    private fun readObject(stream: ObjectInputStream) {
+        stream.defaultReadObject()
+        val sender = (Thread.currentThread() as? DeserializerThread)?.fromPeer?.clock
+        if (sender?.isSynchronized == true) startAt = startAt?.let { sender.toLocalTime(it) }
+    }
 }
 
 
 class TaskTrigger(val taskId: String) : Serializable
 
 
+/**
+ * Drift of a synchronized playback relative to the cluster clock.
+ *
+ * @param offset remaining deviation in milliseconds, positive if the output is ahead
+ * @param insertedFrames number of frames repeated to hold the output back
+ * @param droppedFrames number of frames skipped to catch up
+ */
+data class PlaybackDrift(val offset: Double, val insertedFrames: Long, val droppedFrames: Long) : Serializable
+{
+    override fun toString(): String {
+        return "${"%.2f".format(offset)} ms, $insertedFrames inserted, $droppedFrames dropped"
+    }
+}
+
+
 
 //class WaitTask(val time: Long, onFinished: List<Task>) : Task(onFinished)
 
@@ -80,10 +110,13 @@ class TaskTrigger(val taskId: String) : Serializable
  * @param task startPosition in task points to last known position, matching time
  * duration in PlayTasks points to total duration of task, non-null
  *
- * @param time time (in milliseconds) when the status was obtained
+ * @param time time (in milliseconds) when the status was obtained.
+ * If [updateTimeOnDeserialization] is set, the time is converted to the clock of the receiving peer.
  *
  * @param active if True and task not paused -> playing. False if loading or error
  *
+ * @param drift deviation from the scheduled timeline if the task was started with [PlayTask.startAt]
+ *
  * @author Philipp Holl
  */
 data class PlayTaskStatus(
@@ -93,7 +126,8 @@ data class PlayTaskStatus(
         val busyMessage: String?,
         val errorMessage: String?,
         var time: Long,
-        val updateTimeOnDeserialization: Boolean
+        val updateTimeOnDeserialization: Boolean,
+        val drift: PlaybackDrift? = null
 ) : Data()
 {
     fun message(): String? {
@@ -131,7 +165,8 @@ data class PlayTaskStatus(
     private fun readObject(stream: ObjectInputStream) {
         stream.defaultReadObject()
         if (updateTimeOnDeserialization) {
-            time = System.currentTimeMillis()
+            val sender = (Thread.currentThread() as? DeserializerThread)?.fromPeer?.clock
+            time = if (sender?.isSynchronized == true) sender.toLocalTime(time) else System.currentTimeMillis()
         }
     }
 }
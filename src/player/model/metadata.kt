@@ -0,0 +1,136 @@
+package player.model
+
+import audio.util.AudioTags
+import audio.util.TagReader
+import java.io.*
+import java.nio.file.Files
+import java.nio.file.StandardCopyOption
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Logger
+
+/**
+ * Caches the [AudioTags] of local files, read by [TagReader].
+ * Entries are keyed by path and are valid as long as size and modification time of the file are unchanged.
+ *
+ * The cache is stored in [file] by [save] and read back by [load].
+ * All methods are thread-safe; [get] reads the file if necessary and should not be called on the JavaFX application thread.
+ *
+ * @param file file to persist the cache in, `null` to keep it in memory only
+ */
+class MetadataCache(val file: File?)
+{
+    companion object {
+        private const val MAGIC = 0x434D4554  // "CMET"
+        private const val VERSION = 1
+    }
+
+    private class Entry(val size: Long, val modified: Long, val tags: AudioTags)
+
+    private val entries = ConcurrentHashMap<String, Entry>()
+    private val modified = AtomicBoolean()
+    private val logger = Logger.getLogger("library")
+
+
+    /**
+     * Returns the tags of the file at [path] with the given size and modification time, reading them if they are not cached.
+     *
+     * @return the tags or `null` if the file cannot be read
+     */
+    fun get(path: String, size: Long, modified: Long): AudioTags? {
+        peek(path, size, modified)?.let { tags -> return tags }
+        val tags = try {
+            TagReader.read(File(path))
+        } catch (exc: IOException) {
+            logger.fine("Cannot read tags of $path: $exc")
+            return null
+        }
+        entries[path] = Entry(size, modified, tags)
+        this.modified.set(true)
+        return tags
+    }
+
+    /**
+     * Returns the tags of the file at [path] with the given size and modification time if cached.
+     */
+    fun peek(path: String, size: Long, modified: Long): AudioTags? {
+        val entry = entries[path] ?: return null
+        return if (entry.size == size && entry.modified == modified) entry.tags else null
+    }
+
+    /**
+     * Returns the cached tags of the file at [path] without checking whether the file has changed.
+     */
+    fun peek(path: String): AudioTags? {
+        return entries[path]?.tags
+    }
+
+    fun remove(path: String) {
+        if (entries.remove(path) != null) modified.set(true)
+    }
+
+    /**
+     * Writes the cache to [file] if it has changed since the last save.
+     */
+    fun save() {
+        val file = this.file ?: return
+        if (!modified.getAndSet(false)) return
+        try {
+            file.parentFile?.mkdirs()
+            val tmp = File(file.path + ".tmp")
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tmp), 64 * 1024)).use { out ->
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+                val snapshot = HashMap(entries)
+                out.writeInt(snapshot.size)
+                for ((path, entry) in snapshot) {
+                    out.writeUTF(path)
+                    out.writeLong(entry.size)
+                    out.writeLong(entry.modified)
+                    writeString(out, entry.tags.title)
+                    writeString(out, entry.tags.artist)
+                    writeString(out, entry.tags.album)
+                    out.writeDouble(entry.tags.duration)
+                    out.writeBoolean(entry.tags.isExactDuration)
+                }
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        } catch (exc: IOException) {
+            modified.set(true)
+            logger.warning("Failed to save metadata cache to $file: $exc")
+        }
+    }
+
+    fun load() {
+        val file = this.file ?: return
+        if (!file.exists()) return
+        try {
+            DataInputStream(BufferedInputStream(FileInputStream(file), 64 * 1024)).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                    logger.warning("Ignoring $file: unknown format")
+                    return
+                }
+                val count = input.readInt()
+                for (i in 0 until count) {
+                    val path = input.readUTF()
+                    val size = input.readLong()
+                    val modified = input.readLong()
+                    val tags = AudioTags(readString(input), readString(input), readString(input), input.readDouble(), input.readBoolean())
+                    entries.putIfAbsent(path, Entry(size, modified, tags))
+                }
+            }
+            logger.info("Loaded metadata of ${entries.size} files from $file")
+        } catch (exc: IOException) {
+            logger.warning("Failed to load metadata cache from $file: $exc")
+        }
+    }
+
+    private fun writeString(out: DataOutputStream, value: String?) {
+        out.writeBoolean(value != null)
+        if (value != null) out.writeUTF(value)
+    }
+
+    private fun readString(input: DataInputStream): String? {
+        return if (input.readBoolean()) input.readUTF() else null
+    }
+}
@@ -2,20 +2,41 @@ package player.model.playback
 
 import audio.MediaFile
 import cloud.CloudFile
+import javafx.beans.property.SimpleDoubleProperty
 import java.io.File
+import java.io.FilterInputStream
 import java.io.InputStream
 import java.net.URI
 
-class DMediaFile(val file: CloudFile) : MediaFile {
+/**
+ * @param cache if not null, remote files are downloaded into and served from this cache
+ * @param swarm if not null, remote files are downloaded from all peers that hold a copy
+ */
+class DMediaFile(val file: CloudFile, val cache: RemoteFileCache?, val swarm: Swarm?) : MediaFile {
     // For resource management, this class would be ideal.
 //    var players = FXCollections.observableArrayList<Player>()
 //    val currentJobs = FXCollections.observableArrayList<Job>()
 
     private var localFile: File? = if (file.originatesHere()) File(file.getPath()) else null
+    private var download: ProgressiveDownload? = null
+    private var cacheChecked = false
 
+    /**
+     * Fraction of the file that is available locally, between 0 and 1.
+     * Listeners are notified from the download thread.
+     */
+    val downloadProgress = SimpleDoubleProperty(if (file.originatesHere()) 1.0 else 0.0)
 
+
+    /**
+     * Returns the local file only once it is complete.
+     * While a remote file is still being downloaded, readers must use [openStream].
+     */
     override fun getFile(): File? {
-        return localFile
+        synchronized(this) {
+            val download = currentDownload() ?: return cachedOrLocalFile()
+            return if (download.complete) download.target else null
+        }
     }
 
     override fun getFileName(): String {
@@ -27,35 +48,123 @@ class DMediaFile(val file: CloudFile) : MediaFile {
     }
 
     override fun toURI(): URI? {
-        return localFile?.toURI()
+        return getFile()?.toURI()
     }
 
+    /**
+     * For remote files, the first call starts a progressive download to a temporary file.
+     * The returned stream blocks on bytes that have not been received yet so decoding can start immediately.
+     * Concurrent readers share the same download.
+     * The cached copy is not evicted while streams are open. If it was evicted before, the file is downloaded again.
+     */
     override fun openStream(): InputStream {
-        synchronized(this) {
-            if (localFile == null) {
-                localFile = File.createTempFile("stream_", file.getName())
-                localFile!!.outputStream().use { fstream ->
-                    file.openStream().use {
-                        it.transferTo(fstream)
+        return retained {
+            val download = synchronized(this) {
+                cachedOrLocalFile()?.let { return@retained it.inputStream() }
+                currentDownload()?.takeIf { it.error == null } ?: startDownload()
+            }
+            download.openStream()
+        }
+    }
+
+    /**
+     * Protects the cached copy from eviction before it is looked up and opened by [open].
+     */
+    private fun retained(open: () -> InputStream): InputStream {
+        if (cache == null || file.originatesHere()) return open()
+        cache.retain(file)
+        val stream = try {
+            open()
+        } catch (exc: Exception) {
+            cache.release(file)
+            throw exc
+        }
+        return object : FilterInputStream(stream) {
+            private var released = false
+
+            override fun close() {
+                try {
+                    super.close()
+                } finally {
+                    if (!released) {
+                        released = true
+                        cache.release(file)
                     }
                 }
             }
-            return localFile!!.inputStream()
         }
     }
 
+    /**
+     * Returns the download of this file unless it completed and was evicted from the cache since.
+     */
+    private fun currentDownload(): ProgressiveDownload? {
+        val download = this.download ?: return null
+        if (download.complete && !download.target.exists()) {
+            this.download = null
+            cacheChecked = false
+            downloadProgress.value = 0.0
+            return null
+        }
+        return download
+    }
+
+    private fun cachedOrLocalFile(): File? {
+        if (!file.originatesHere() && localFile?.exists() == false) {  // evicted from the cache
+            localFile = null
+            cacheChecked = false
+            downloadProgress.value = 0.0
+        }
+        if (localFile == null && !cacheChecked && cache != null) {
+            cacheChecked = true
+            localFile = cache.get(file)
+            if (localFile != null) downloadProgress.value = 1.0
+        }
+        return localFile
+    }
+
+    private fun startDownload(): ProgressiveDownload {
+        val target = cache?.target(file) ?: File.createTempFile("stream_", file.getName())
+        val download = ProgressiveDownload(file, target, swarm)
+        download.onProgress.add { received, total ->
+            downloadProgress.value = if (total > 0) received.toDouble() / total else 0.0
+            if (download.complete) cache?.put(file)
+            if (download.error != null) cache?.discard(file)
+        }
+        this.download = download
+        download.start()
+        return download
+    }
+
+    /**
+     * Whether the file is remote and still being transferred.
+     */
+    fun isDownloading(): Boolean {
+        val download = this.download ?: return false
+        return !download.complete && download.error == null
+    }
+
     override fun toString(): String {
         return fileName
     }
 }
 
 
-class MediaFileManager() {
-    private val fileMap = HashMap<CloudFile, DMediaFile>()
+/**
+ * Keeps at most [maxFiles] [DMediaFile]s that are not currently downloading, dropping the least recently used ones.
+ * Downloaded files remain available through [cache].
+ */
+class MediaFileManager(val cache: RemoteFileCache?, val swarm: Swarm?, val maxFiles: Int = 256) {
+    private val fileMap = object : LinkedHashMap<CloudFile, DMediaFile>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<CloudFile, DMediaFile>): Boolean {
+            return size > maxFiles && !eldest.value.isDownloading()
+        }
+    }
 
+    @Synchronized
     fun get(file: CloudFile): DMediaFile {
         return fileMap[file] ?: run {
-            val newFile = DMediaFile(file)
+            val newFile = DMediaFile(file, cache, swarm)
             fileMap[file] = newFile
             newFile
         }
@@ -6,15 +6,19 @@ import javafx.beans.property.SimpleBooleanProperty
 import javafx.beans.property.SimpleIntegerProperty
 import javafx.beans.property.SimpleObjectProperty
 import javafx.beans.property.SimpleStringProperty
+import player.model.data.PlaybackDrift
 import player.model.data.PlayTask
 import player.model.data.PlayTaskStatus
 import player.model.data.Speaker
 import systemcontrol.LocalMachine
-import java.util.concurrent.Executors
 import java.util.concurrent.ScheduledFuture
 import java.util.concurrent.TimeUnit
 
 class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double) {
+    companion object {
+        private const val DRIFT_REPORT_INTERVAL: Long = 10  // seconds
+    }
+
     var task = SimpleObjectProperty<PlayTask?>()  // alive when not null
     private val restartCount = SimpleIntegerProperty(-1)
 
@@ -26,13 +30,17 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
     val errorMessage = SimpleStringProperty(null)
     val busyMessage = SimpleStringProperty(null)
     val previous = SimpleObjectProperty<Job?>()
+    /** Jobs whose [previous] is this job */
+    val dependents: MutableSet<Job> = HashSet()
 
     val status = SimpleObjectProperty<PlayTaskStatus?>()
 
 
     init {
         task.addListener(InvalidationListener { update() })
-        previous.addListener { _, _, value ->
+        previous.addListener { _, old, value ->
+            old?.dependents?.remove(this)
+            value?.dependents?.add(this)
             value?.started?.addListener { _, _, _ -> update() }
             value?.finished?.addListener { _, _, _ -> update() }
         }
@@ -121,22 +129,41 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
         val position = player?.position ?: task.position
         val duration = player?.duration ?: task.duration
         val paused = task.paused && player?.isPlaying == false
-        val expandedTask = PlayTask(target!!, task.file, gain, mute, balance, position, restartCount.value, duration, task.creator, paused, task.trigger, task.id)
+        val expandedTask = PlayTask(target!!, task.file, gain, mute, balance, position, restartCount.value, duration, task.creator, paused, task.trigger, task.id, task.startAt)
         val active = player != null && started.value && !finished.value
-        return PlayTaskStatus(expandedTask, active, finished.value, busyMessage.value, errorMessage.value, System.currentTimeMillis(), true)
+        val drift = player?.driftStatistics?.let { d -> PlaybackDrift(d.offsetMillis, d.insertedFrames, d.droppedFrames) }
+        return PlayTaskStatus(expandedTask, active, finished.value, busyMessage.value, errorMessage.value, System.currentTimeMillis(), true, drift)
     }
 
 
+    private var downloadingFile: DMediaFile? = null
+    private val downloadListener = InvalidationListener { downloadingFile?.let { reportDownload(it) } }
+
+    /**
+     * Shows the progress of a remote file transfer as [busyMessage] while playback may already be running.
+     */
+    private fun reportDownload(file: DMediaFile) {
+        val message = if (file.isDownloading()) "Streaming '$file' (${(file.downloadProgress.value * 100).toInt()}%)" else null
+        if (message == busyMessage.value) return
+        busyMessage.value = message
+        engine.mainThread.submit { status.value = status() }
+    }
+
     private fun createPlayer(): Player? {
+        engine.preloader.claim(task.value!!.file)
         val file = engine.files.get(task.value!!.file)
         busyMessage.value = "Loading '$file'"
+        if (!file.file.originatesHere()) {
+            downloadingFile = file
+            file.downloadProgress.addListener(downloadListener)
+        }
         try {
             val player = engine.audioEngine.newPlayer(file)
             player.prepare()
             simulateWait()
             player.addEndOfMediaListener { finished.value = true; }
-            if (player.duration < 0) {
-                Thread {
+            if (player.duration < 0) {  // not in the file headers, e.g. while streaming, wait for the decoder
+                engine.decodeWaiters.submit {
                     try {
                         player.waitForDurationProperty()
                         simulateWait()
@@ -146,10 +173,11 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
                         errorMessage.value = "${exc.javaClass}: ${exc.message}"
                         exc.printStackTrace()
                     } catch (_: InterruptedException) {}
-                }.start()
+                }
             }
             errorMessage.value = null
             busyMessage.value = null
+            downloadingFile?.let { reportDownload(it) }
             return player
         } catch (exc: Exception) {
             errorMessage.value = "${exc.javaClass}: ${exc.message}"
@@ -158,6 +186,9 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
         }
     }
 
+    private var scheduledStart: Long? = null  // the start time that has already been passed on to the player
+    private var seeking = false  // whether a scheduled start waits for the position to be set
+
     private fun adjustPlayer(player: Player, task: PlayTask) {
         try {
             val targetDevice = engine.speakerMap[task.target]
@@ -167,8 +198,13 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
                 else player.activate(targetDevice, bufferTime)
             }
             if(task.restartCount > restartCount.value) {
-                if (task.position >= 0)
-                    player.setPositionAsync(task.position) { engine.mainThread.submit { status.value = status(); updateEndListener() } }
+                if (task.position >= 0) {
+                    if (task.startAt != null) {  // the position must be set before the start is scheduled
+                        seeking = true
+                        player.setPositionAsync(task.position) { engine.mainThread.submit { seekFinished(player) } }
+                    } else
+                        player.setPositionAsync(task.position) { engine.mainThread.submit { status.value = status(); updateEndListener() } }
+                }
                 restartCount.value = task.restartCount
             }
             if (targetDevice != null) {
@@ -177,8 +213,7 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
                 }
                 player.isMute = task.mute
                 player.balance = task.balance
-                val shouldPlay = !task.paused && started.value && !finished.value
-                if (shouldPlay) player.start() else player.pause()
+                if (!seeking) updatePlayState(player, task)
             }
         } catch (exc: Exception) {
             exc.printStackTrace()
@@ -186,6 +221,36 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
         }
     }
 
+    private fun updatePlayState(player: Player, task: PlayTask) {
+        val shouldPlay = !task.paused && started.value && !finished.value
+        val startAt = task.startAt
+        if (!shouldPlay) player.pause()
+        else if (startAt != null && startAt != scheduledStart) {
+            scheduledStart = startAt
+            player.startAt(startAt)
+            startDriftReports()
+        }
+        else player.start()
+    }
+
+    /**
+     * Applies the play state that was held back while the position was being set. Runs on the main thread.
+     */
+    private fun seekFinished(player: Player) {
+        seeking = false
+        if (disposing || this.player.value !== player) return
+        status.value = status()
+        updateEndListener()
+        val task = this.task.value ?: return
+        if (engine.speakerMap[task.target] == null) return
+        try {
+            updatePlayState(player, task)
+        } catch (exc: Exception) {
+            exc.printStackTrace()
+            errorMessage.value = "${exc.javaClass}: ${exc.message}"
+        }
+    }
+
     /**
      * Dead jobs are removed from the job list.
      * They will be disposed of as soon as no other job references them anymore.
@@ -205,21 +270,27 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
     fun dispose() {
         if (disposing) return;
         disposing = true
-        Thread(Runnable {
-            if (player.value?.isPlaying == true && engine.config.fadeOutDuration.value > 0) {
-                val stepInterval: Long = 50  // low values can cause stuttering with Java Audio
-                val steps = (engine.config.fadeOutDuration.value * 1000 / stepInterval).toInt()
-                val decreasePerStep = engine.config.fadeOutGain.value / steps
-                for (index in 1..steps) {
-                    player.value?.gain = (player.value?.gain ?: 0.0) - decreasePerStep
-                    Thread.sleep(stepInterval)
-                }
+        downloadingFile?.downloadProgress?.removeListener(downloadListener)
+        driftReports?.cancel(false)
+        end?.cancel(false)
+        if (player.value?.isPlaying == true && engine.config.fadeOutDuration.value > 0) {
+            val stepInterval: Long = 50  // low values can cause stuttering with Java Audio
+            val steps = (engine.config.fadeOutDuration.value * 1000 / stepInterval).toInt()
+            val decreasePerStep = engine.config.fadeOutGain.value / steps
+            for (index in 1..steps) {
+                engine.scheduler.schedule(Runnable { player.value?.gain = (player.value?.gain ?: 0.0) - decreasePerStep }, (index - 1) * stepInterval, TimeUnit.MILLISECONDS)
             }
-            player.value?.dispose()
-            player.value = null
-            task.value = null
-            LocalMachine.getLocalMachine()?.setPreventStandby(false, this)
-        }).start()
+            engine.scheduler.schedule(Runnable { release() }, steps * stepInterval, TimeUnit.MILLISECONDS)
+        } else {
+            engine.scheduler.execute { release() }
+        }
+    }
+
+    private fun release() {
+        player.value?.dispose()
+        player.value = null
+        task.value = null
+        LocalMachine.getLocalMachine()?.setPreventStandby(false, this)
     }
 
     override fun toString(): String {
@@ -231,7 +302,17 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
     }
 
     private var end: ScheduledFuture<*>? = null
-    private val endPool = Executors.newScheduledThreadPool(1)
+    private var driftReports: ScheduledFuture<*>? = null
+
+    /**
+     * Periodically republishes the status so that other peers see the drift of a synchronized playback.
+     */
+    private fun startDriftReports() {
+        if (driftReports != null) return
+        driftReports = engine.scheduler.scheduleWithFixedDelay({
+            if (player.value?.isPlaying == true) engine.mainThread.submit { status.value = status() }
+        }, DRIFT_REPORT_INTERVAL, DRIFT_REPORT_INTERVAL, TimeUnit.SECONDS)
+    }
 
     private fun updateEndListener() {
         end?.cancel(false)
@@ -239,7 +320,7 @@ class Job(val taskId: String, val engine: PlaybackEngine, val bufferTime: Double
         if (player.value?.isPlaying == true && task.duration != null) {
             val remaining = remaining()
             if (remaining != null) {
-                end = endPool.schedule({
+                end = engine.scheduler.schedule({
                     if (remaining() ?: 1.0 < 0.0) {
                         player.value?.pause()
                         finished.value = true
@@ -5,6 +5,9 @@ import audio.AudioEngine
 import audio.javafx.JavaFXAudioEngine
 import audio.javasound.JavaSoundEngine
 import cloud.Cloud
+import cloud.CloudFile
+import cloud.Data
+import cloud.Peer
 import cloud.Peer.Companion.getLocal
 import javafx.beans.InvalidationListener
 import javafx.beans.binding.Bindings
@@ -14,6 +17,8 @@ import javafx.collections.FXCollections
 import javafx.collections.ListChangeListener
 import javafx.collections.ObservableList
 import player.model.CycloneConfig
+import player.model.PlayerData
+import player.model.getConfigFile
 import player.model.data.MasterGain
 import player.model.data.PlayTask
 import player.model.data.PlayTaskStatus
@@ -21,6 +26,10 @@ import player.model.data.Speaker
 import java.util.concurrent.Callable
 import java.util.concurrent.ExecutorService
 import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
 import java.util.stream.Collectors
 
 /**
@@ -34,71 +43,220 @@ import java.util.stream.Collectors
 class PlaybackEngine (val cloud: Cloud, val config: CycloneConfig)
 {
     val audioEngine: AudioEngine = createEngine(config.audioEngine.value)
-    val files = MediaFileManager()
 
     val mainThread: ExecutorService = Executors.newFixedThreadPool(1)
-    val jobThreads: ExecutorService = Executors.newFixedThreadPool(2)
+    /** Loads media for jobs. The number of threads is bounded no matter how many jobs exist. */
+    val jobThreads: ExecutorService = Executors.newFixedThreadPool(2, daemonThreads("Playback Loader"))
+    /** Waits for players to finish decoding, which can take as long as a download. Kept apart from [jobThreads] so waiting never holds up loading. */
+    val decodeWaiters: ExecutorService = Executors.newCachedThreadPool(daemonThreads("Decode Waiter"))
+    /** Runs end-of-task timers, drift reports and fade-outs of all jobs. Scheduled actions must not block. */
+    val scheduler: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(daemonThreads("Playback Scheduler"))
+
+    private val cache = RemoteFileCache(getConfigFile("cache"), (config.cacheSize.value * 1e6).toLong())
+    val files = MediaFileManager(cache, Swarm(cloud, cache) { r -> mainThread.submit(r) })
 
     private val tasks = cloud.getAll(PlayTask::class.java, this) { r -> mainThread.submit(r) }
     private val masterGainData = cloud.getSynchronized(MasterGain::class.java) { r -> mainThread.submit(r) }
+    private val playlistData = cloud.getSynchronized(PlayerData.Playlist::class.java) { r -> mainThread.submit(r) }
+    private val loopingData = cloud.getSynchronized(PlayerData.Looping::class.java) { r -> mainThread.submit(r) }
 
     // Public properties
     val jobs: ObservableList<Job> = FXCollections.observableArrayList()
     val masterGain: DoubleBinding = Bindings.createDoubleBinding(Callable { masterGainData.value.value }, masterGainData)
     private val statusInvalid = SimpleBooleanProperty()
+    private val adopted = HashMap<String, PlayTask>()  // tasks of lost peers that this engine keeps alive, guarded by itself
+    // Indices, accessed on mainThread
+    private val tasksById = HashMap<String, MutableList<PlayTask>>()  // usually one task per ID, the last one wins
+    private val jobsById = HashMap<String, Job>()
+    private val localTasks = HashMap<String, PlayTask>()  // current version of each task targeting a local speaker
+    private val pendingDisposal = LinkedHashSet<Job>()  // dead jobs that may still be referenced
+    /** Number and duration of task reconciliations */
+    val reconciliationStats = ReconciliationStats()
+    val preloader = Preloader(this, config.preloadCount.value, (config.preloadMemory.value * 1e6).toLong())
 
     val speakerMap: Map<Speaker, AudioDevice> = audioEngine.devices.stream().collect(Collectors.toMap({ dev -> Speaker(getLocal(), dev.id, dev.name, dev.minGain, dev.maxGain, dev.isDefault) }, { dev -> dev}))
+    /** Sound effects kept ready on local speakers, fired by messages instead of tasks */
+    val effects = EffectBank(this)
 
 
     init {
 //        supportedTypes = ArrayList(audio.supportedMediaTypes.stream().map { t: MediaType -> t.fileExtension }.collect(Collectors.toList()))
         cloud.push(Speaker::class.java, speakerMap.keys, this, true)
-        mainThread.submit { tasksUpdated() }
-        tasks.addListener(ListChangeListener { mainThread.submit { tasksUpdated() } })
+        mainThread.submit {  // tasks is updated on the mainThread, so no change can be missed or seen twice
+            tasks.addListener(ListChangeListener { change -> tasksChanged(change) })
+            tasksAdded(ArrayList(tasks))
+        }
         statusInvalid.addListener(InvalidationListener { if(statusInvalid.value == true) publishInfo() })
+        cloud.onPeerLost.add { peer, data -> adoptTasks(peer, data) }
+        playlistData.addListener(InvalidationListener { planPreloading() })
+        loopingData.addListener(InvalidationListener { planPreloading() })
+        config.cacheSize.addListener(InvalidationListener { cache.resize((config.cacheSize.value * 1e6).toLong()) })
     }
 
 
-    private fun tasksUpdated() {
-        // --- Handle existing tasks ---
-        for (task in tasks) {
-            var job = getJob(task.id)
-            if (job == null) {
-                if (task.target in speakerMap.keys) {
-                    job = getOrCreateJob(task.id)
-                }
+    /**
+     * Keeps playing the tasks of a peer whose connection was lost.
+     * The tasks targeting local speakers are pushed as local data before the data of the lost peer is removed
+     * so that running jobs are not interrupted.
+     *
+     * Called from the thread that detected the loss.
+     */
+    private fun adoptTasks(peer: Peer, data: List<Data>) {
+        val orphans = data.filterIsInstance<PlayTask>().filter { task -> task.target in speakerMap.keys }
+        if (orphans.isEmpty()) return
+        cloud.logger.info("Adopting ${orphans.size} task(s) of lost peer $peer")
+        synchronized(adopted) {
+            orphans.forEach { task -> adopted[task.id] = task }
+            cloud.push(PlayTask::class.java, ArrayList(adopted.values), this, true)
+        }
+    }
+
+    /**
+     * Gives up those of the given adopted tasks that are finished or that their issuer publishes again after reconnecting,
+     * i.e. that exist in more than one version.
+     * Tasks that were triggered by a released task start right away.
+     *
+     * Called on the [mainThread] when tasks change or jobs finish.
+     */
+    private fun releaseAdoptedTasks(candidates: Collection<String>) {
+        synchronized(adopted) {
+            if (adopted.isEmpty()) return
+            val released = candidates.filter { id -> id in adopted && ((tasksById[id]?.size ?: 0) > 1 || getJob(id)?.finished?.value == true) }
+            if (released.isEmpty()) return
+            released.forEach { id -> adopted.remove(id) }
+            for ((id, task) in ArrayList(adopted.entries)) {
+                if (task.trigger?.taskId in released) adopted[id] = task.copy(trigger = null)
+            }
+            cloud.push(PlayTask::class.java, ArrayList(adopted.values), this, true)
+        }
+    }
+
+
+    /**
+     * Applies a change of [tasks]. Called on the [mainThread] which also updates [tasks].
+     */
+    private fun tasksChanged(change: ListChangeListener.Change<out PlayTask>) {
+        val start = System.nanoTime()
+        val changed = LinkedHashSet<String>()
+        while (change.next()) {
+            for (task in change.removed) {
+                val versions = tasksById[task.id] ?: continue
+                versions.remove(task)
+                if (versions.isEmpty()) tasksById.remove(task.id)
+                changed.add(task.id)
+            }
+            for (task in change.addedSubList) {
+                tasksById.getOrPut(task.id) { ArrayList(1) }.add(task)
+                changed.add(task.id)
+            }
+        }
+        reconcile(changed, start)
+    }
+
+    private fun tasksAdded(added: List<PlayTask>) {
+        val start = System.nanoTime()
+        for (task in added) {
+            tasksById.getOrPut(task.id) { ArrayList(1) }.add(task)
+        }
+        reconcile(added.map { task -> task.id }.toSet(), start)
+    }
+
+    /**
+     * Assigns the current tasks to the jobs with the given IDs, creating jobs for tasks that target local speakers.
+     * The cost depends on the number of changed tasks; if a task for a local speaker changed, preloading is planned anew,
+     * which additionally depends on the number of local tasks.
+     */
+    private fun reconcile(changedIds: Collection<String>, start: Long) {
+        releaseAdoptedTasks(changedIds)
+        var localChange = false
+        for (id in changedIds) {
+            val task = tasksById[id]?.last()
+            if (task != null && task.target in speakerMap.keys) localTasks[id] = task
+            else if (localTasks.remove(id) == null && id !in jobsById) continue  // neither was nor is local
+            localChange = true
+            var job = jobsById[id]
+            if (job == null && task != null && task.target in speakerMap.keys) {
+                job = getOrCreateJob(id)
             }
             job?.task?.value = task
+            if (job != null && !job.isAlive()) pendingDisposal.add(job)
         }
-        // --- Handle deleted tasks ---
-        for (job in jobs) {
-            if (job.task.value !in tasks) {
-                job.task.value = null
+        disposeUnreferenced()
+        reconciliationStats.record(changedIds.size, System.nanoTime() - start)
+        if (localChange) planPreloading()
+    }
+
+    /**
+     * Passes the files that will probably be played next on local speakers to the [preloader].
+     * These are the files of waiting tasks in trigger order, followed by the files after the last one in the playlist.
+     * Called on the [mainThread].
+     */
+    private fun planPreloading() {
+        val localTasks = localTasks.values
+        val byTrigger = localTasks.filter { task -> task.trigger != null }.associateBy { task -> task.trigger!!.taskId }
+        val upcoming = ArrayList<CloudFile>()
+        var last: CloudFile? = null
+        for (root in localTasks.filter { task -> task.trigger == null || task.trigger.taskId !in tasksById }) {
+            var task: PlayTask? = root
+            while (task != null && upcoming.size < preloader.maxFiles) {
+                if (jobsById[task.id]?.player?.value == null) upcoming.add(task.file)
+                last = task.file
+                task = byTrigger[task.id]
             }
         }
-        // --- Delete jobs ---
-        for (job in ArrayList(jobs)) {
-            if (!job.isAlive()) {
-                if (jobs.none { j -> job in j.references() }) {
-                    job.dispose()
-                    jobs.remove(job)
+        // Continue along the playlist
+        val playlist = playlistData.value
+        var index = last?.let { file -> playlist.indexOf(file) } ?: -1
+        if (index >= 0) {
+            val looping = loopingData.value.value
+            while (upcoming.size < preloader.maxFiles) {
+                index++
+                if (index >= playlist.size) {
+                    if (!looping) break
+                    index = 0
                 }
+                val file = playlist.files[index]
+                if (file == last) break  // wrapped around
+                upcoming.add(file)
+            }
+        }
+        preloader.plan(upcoming)
+    }
+
+    /**
+     * Disposes dead jobs that no waiting job depends on.
+     */
+    private fun disposeUnreferenced() {
+        val iterator = pendingDisposal.iterator()
+        while (iterator.hasNext()) {
+            val job = iterator.next()
+            if (job.isAlive()) {
+                iterator.remove()
+            } else if (job.dependents.none { j -> job in j.references() }) {
+                iterator.remove()
+                job.dispose()
+                jobsById.remove(job.taskId)
+                jobs.remove(job)
             }
         }
     }
 
 
     fun getJob(taskId: String): Job? {
-        return jobs.firstOrNull { j -> j.taskId == taskId }
+        return jobsById[taskId]
     }
 
 
     fun getOrCreateJob(taskId: String): Job {
-        val existing = jobs.firstOrNull { j -> j.taskId == taskId}
-        existing?.let { return existing }
+        jobsById[taskId]?.let { existing -> return existing }
         val newJob = Job(taskId, this, config.bufferTime.value)
+        jobsById[taskId] = newJob
         jobs.add(newJob)
         newJob.status.addListener(InvalidationListener { statusInvalid.value = true })
+        // A job that started no longer references its predecessor, which may be disposable now
+        newJob.started.addListener(InvalidationListener { if (pendingDisposal.isNotEmpty()) mainThread.submit { disposeUnreferenced() } })
+        newJob.finished.addListener { _, _, finished -> if (finished) mainThread.submit { releaseAdoptedTasks(listOf(taskId)) } }
+        if (newJob.task.value == null) pendingDisposal.add(newJob)
         return newJob
     }
 
@@ -122,8 +280,17 @@ class PlaybackEngine (val cloud: Cloud, val config: CycloneConfig)
 
 
     fun dispose() {
+        preloader.dispose()
+        effects.dispose()
         jobs.forEach { job -> job.dispose() }
         cloud.yankAll(null, this)
+        files.swarm?.let { swarm -> cloud.yankAll(null, swarm) }
+        cache.flush()
+    }
+
+    private fun daemonThreads(name: String): ThreadFactory {
+        val count = AtomicInteger()
+        return ThreadFactory { r -> Thread(r, "$name ${count.incrementAndGet()}").also { t -> t.isDaemon = true } }
     }
 
     private fun createEngine(name: String?): AudioEngine {
@@ -136,4 +303,29 @@ class PlaybackEngine (val cloud: Cloud, val config: CycloneConfig)
         throw IllegalArgumentException("Unknown audio engine: $name")
     }
 
-}
\ No newline at end of file
+}
+
+
+/**
+ * Counts task reconciliations of a [PlaybackEngine] and the time spent on them.
+ */
+class ReconciliationStats
+{
+    private val count = AtomicLong()
+    private val tasks = AtomicLong()
+    private val nanos = AtomicLong()
+    private val maxNanos = AtomicLong()
+
+    fun record(changedTasks: Int, durationNanos: Long) {
+        count.incrementAndGet()
+        tasks.addAndGet(changedTasks.toLong())
+        nanos.addAndGet(durationNanos)
+        maxNanos.accumulateAndGet(durationNanos) { a, b -> maxOf(a, b) }
+    }
+
+    override fun toString(): String {
+        val n = count.get()
+        if (n == 0L) return "No reconciliations"
+        return "$n reconciliations of ${tasks.get()} task(s), avg ${"%.3f".format(nanos.get() / n / 1e6)} ms, max ${"%.3f".format(maxNanos.get() / 1e6)} ms"
+    }
+}
@@ -0,0 +1,219 @@
+package player.model.playback
+
+import cloud.CloudFile
+import java.io.*
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.logging.Logger
+
+/**
+ * Keeps local copies of remote [CloudFile]s in [directory] so that repeated playback does not transfer them again.
+ *
+ * Entries are identified by the name of the origin peer, path, size and modification time of the file.
+ * Peer IDs are not used because they change whenever the origin device restarts.
+ * When the total size of all cached files exceeds [maxBytes], the least recently used files are deleted,
+ * except for files that are in use, see [retain].
+ *
+ * The index is stored in [directory] and read on creation so cached files survive restarts.
+ * It is written when files are added or removed and by [flush]; changes to the LRU order alone are written lazily.
+ */
+class RemoteFileCache(val directory: File, maxBytes: Long)
+{
+    private class Entry(val key: String, val fileName: String, val size: Long) : Serializable
+
+    data class Stats(val files: Int, val bytes: Long, val maxBytes: Long, val hits: Int, val misses: Int, val evictions: Int)
+    {
+        override fun toString(): String {
+            return "$files files, ${bytes / 1_000_000} / ${maxBytes / 1_000_000} MB, $hits hits, $misses misses, $evictions evicted"
+        }
+    }
+
+    var maxBytes = maxBytes
+        private set
+    private val index = LinkedHashMap<String, Entry>(16, 0.75f, true)  // access order = LRU order
+    private val indexFile = File(directory, "index.ser")
+    private val inUse = HashMap<String, Int>()  // key -> number of retains
+    private var dirty = false
+    private val logger = Logger.getLogger("cache")
+    private var hits = 0
+    private var misses = 0
+    private var evictions = 0
+
+    /**
+     * Invoked whenever files are added to or removed from the cache.
+     */
+    val onChange = CopyOnWriteArrayList<Runnable>()
+
+
+    init {
+        directory.mkdirs()
+        load()
+    }
+
+
+    /**
+     * Returns the cached copy of [file] or `null` if the file is not cached.
+     * A successful lookup marks the entry as recently used.
+     */
+    @Synchronized
+    fun get(file: CloudFile): File? {
+        val key = key(file)
+        val entry = index[key]
+        if (entry != null) {
+            val cached = File(directory, entry.fileName)
+            if (cached.length() == entry.size) {
+                hits++
+                dirty = true
+                return cached
+            }
+            index.remove(key)
+        }
+        misses++
+        return null
+    }
+
+    /**
+     * Returns the location to which [file] should be downloaded.
+     * The file only becomes part of the cache once [put] is called.
+     */
+    @Synchronized
+    fun target(file: CloudFile): File {
+        val target = File(directory, fileName(file))
+        if (target.exists()) target.delete()
+        target.createNewFile()
+        return target
+    }
+
+    /**
+     * Adds a completely downloaded file that was written to [target] and evicts old entries if necessary.
+     */
+    @Synchronized
+    fun put(file: CloudFile) {
+        val target = File(directory, fileName(file))
+        index[key(file)] = Entry(key(file), target.name, target.length())
+        evict()
+        save()
+        onChange.forEach { it.run() }
+    }
+
+    /**
+     * Removes a file that could not be downloaded completely.
+     */
+    @Synchronized
+    fun discard(file: CloudFile) {
+        if (index.remove(key(file)) != null) save()
+        File(directory, fileName(file)).delete()
+    }
+
+    /**
+     * Protects the cached copy of [file] from eviction until [release] is called the same number of times.
+     */
+    @Synchronized
+    fun retain(file: CloudFile) {
+        val key = key(file)
+        inUse[key] = (inUse[key] ?: 0) + 1
+    }
+
+    @Synchronized
+    fun release(file: CloudFile) {
+        val key = key(file)
+        val count = inUse[key] ?: return
+        if (count > 1) inUse[key] = count - 1 else inUse.remove(key)
+    }
+
+    /**
+     * Changes the size limit, evicting files immediately if the cache has become too large.
+     */
+    @Synchronized
+    fun resize(maxBytes: Long) {
+        if (maxBytes == this.maxBytes) return
+        this.maxBytes = maxBytes
+        val count = index.size
+        evict()
+        if (index.size != count) {
+            save()
+            onChange.forEach { it.run() }
+        }
+    }
+
+    /**
+     * Writes the index if it has changed since it was last written.
+     */
+    @Synchronized
+    fun flush() {
+        if (dirty) save()
+    }
+
+    /**
+     * Returns the keys and locations of all cached files.
+     */
+    @Synchronized
+    fun entries(): Map<String, File> {
+        return index.values.associate { entry -> entry.key to File(directory, entry.fileName) }
+    }
+
+    @Synchronized
+    fun stats(): Stats {
+        return Stats(index.size, index.values.map { it.size }.sum(), maxBytes, hits, misses, evictions)
+    }
+
+    private fun evict() {
+        var totalSize = index.values.map { it.size }.sum()
+        val iterator = index.values.iterator()
+        while (totalSize > maxBytes && index.size > 1 && iterator.hasNext()) {
+            val eldest = iterator.next()
+            if (eldest.key in inUse) continue  // still read by a player
+            iterator.remove()
+            File(directory, eldest.fileName).delete()
+            totalSize -= eldest.size
+            evictions++
+        }
+    }
+
+    private fun load() {
+        if (indexFile.exists()) {
+            try {
+                ObjectInputStream(indexFile.inputStream().buffered()).use {
+                    for (entry in it.readObject() as List<*>) {
+                        entry as Entry
+                        if (File(directory, entry.fileName).length() == entry.size) {
+                            index[entry.key] = entry
+                        }
+                    }
+                }
+            } catch (exc: Exception) {
+                logger.warning("Failed to read cache index: $exc")
+            }
+        }
+        // Remove files that are not part of the index, e.g. interrupted downloads
+        val known = index.values.map { it.fileName }.toSet()
+        directory.listFiles()?.filter { f -> f != indexFile && f.name !in known }?.forEach { it.delete() }
+        evict()
+        save()
+    }
+
+    private fun save() {
+        dirty = false
+        try {
+            ObjectOutputStream(indexFile.outputStream().buffered()).use {
+                it.writeObject(ArrayList(index.values))
+            }
+        } catch (exc: IOException) {
+            logger.warning("Failed to write cache index: $exc")
+        }
+    }
+
+    private fun fileName(file: CloudFile): String {
+        val extension = file.getName().substringAfterLast('.', "")
+        return UUID.nameUUIDFromBytes(key(file).toByteArray()).toString() + if (extension.isEmpty()) "" else ".$extension"
+    }
+
+    companion object {
+        /**
+         * Identifies a version of a file independently of the peer that holds it.
+         */
+        fun key(file: CloudFile): String {
+            return "${file.getOrigin().name}|${file.getPath()}|${file.length()}|${file.lastModified()}"
+        }
+    }
+}
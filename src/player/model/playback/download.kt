@@ -0,0 +1,283 @@
+package player.model.playback
+
+import cloud.CloudFile
+import cloud.checksum
+import player.model.data.FileAvailability
+import java.io.*
+import java.util.*
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.logging.Logger
+
+/**
+ * Copies a remote [CloudFile] to a local [target] file in the background.
+ * While the download is running, any number of readers can obtain an [InputStream] using [openStream].
+ * These streams read the bytes that have already been received and block until more data is available.
+ * This allows decoding to start before the file has been transferred completely.
+ *
+ * If other peers of the [swarm] hold copies of the file, it is downloaded in chunks from several peers in parallel.
+ * Chunks not obtained from the origin are verified against checksums computed by the origin.
+ * The checksums are requested in parallel so that the origin starts sending the first chunk immediately.
+ */
+class ProgressiveDownload(val source: CloudFile, val target: File, val swarm: Swarm? = null)
+{
+    private val lock = Object()
+    private val progressLock = Object()  // serializes progress reports of concurrent chunk workers
+    private var chunksSinceAdvertised = 0  // guarded by progressLock
+    @Volatile var received: Long = 0
+        private set
+    @Volatile var complete = false
+        private set
+    @Volatile var error: IOException? = null
+        private set
+
+    /**
+     * Invoked from a download thread with (received bytes, total bytes) whenever a new chunk has been written.
+     * Calls never overlap.
+     */
+    val onProgress = CopyOnWriteArrayList<(Long, Long) -> Unit>()
+
+    private var thread: Thread? = null
+
+
+    fun start() {
+        synchronized(lock) {
+            if (thread != null) return
+            thread = Thread(Runnable { download() }, "Download ${source.getName()}")
+            thread!!.isDaemon = true
+            thread!!.start()
+        }
+    }
+
+    private fun download() {
+        val total = source.length()
+        try {
+            val holders = swarm?.sources(source) ?: emptyList()
+            if (holders.isEmpty()) downloadSequential(total)
+            else downloadChunks(holders.take(Swarm.MAX_SOURCES - 1), total)
+            synchronized(lock) {
+                complete = true
+                lock.notifyAll()
+            }
+        } catch (exc: IOException) {
+            synchronized(lock) {
+                error = exc
+                lock.notifyAll()
+            }
+        }
+        reportProgress(total)
+    }
+
+    private fun reportProgress(total: Long) {
+        synchronized(progressLock) {
+            onProgress.forEach { it(received, total) }
+        }
+    }
+
+    private fun downloadSequential(total: Long) {
+        source.openStream().use { input ->
+            FileOutputStream(target).use { output ->
+                val buffer = ByteArray(64 * 1024)
+                while (true) {
+                    val n = input.read(buffer)
+                    if (n < 0) break
+                    output.write(buffer, 0, n)
+                    output.flush()
+                    synchronized(lock) {
+                        received += n
+                        lock.notifyAll()
+                    }
+                    reportProgress(total)
+                }
+            }
+        }
+    }
+
+    /**
+     * Downloads chunks from the origin and [holders] in parallel, lowest chunks first.
+     * [received] always marks the end of the contiguous prefix that has been written.
+     */
+    private fun downloadChunks(holders: List<FileAvailability>, total: Long) {
+        val chunkSize = Swarm.CHUNK_SIZE
+        val chunkCount = ((total + chunkSize - 1) / chunkSize).toInt()
+        var checksums: LongArray? = null  // guarded by lock, null if they could not be obtained
+        var checksumsReceived = false
+        Thread(Runnable {
+            val result = try {
+                source.checksums(chunkSize).takeIf { it.size == chunkCount }
+            } catch (exc: IOException) {
+                Logger.getLogger("cloud").warning("Failed to obtain checksums of ${source.getName()}, downloading from origin only: $exc")
+                null
+            }
+            synchronized(lock) {
+                checksums = result
+                checksumsReceived = true
+                lock.notifyAll()
+            }
+        }, "Checksums ${source.getName()}").also { it.isDaemon = true }.start()
+        val open = TreeSet<Int>((0 until chunkCount).toList())
+        val originOnly = TreeSet<Int>()  // chunks that failed verification or transfer from other peers
+        val done = BitSet(chunkCount)
+        var failure: IOException? = null
+        Logger.getLogger("cloud").info("Downloading ${source.getName()} from origin and ${holders.size} other peer(s)")
+
+        RandomAccessFile(target, "rw").use { out ->
+            out.setLength(total)
+
+            fun claim(holder: FileAvailability?): Int? {
+                synchronized(lock) {
+                    if (failure != null) return null
+                    if (holder == null) return (originOnly.pollFirst() ?: open.pollFirst())
+                    val index = open.firstOrNull { i -> holder.hasChunk(i) } ?: return null
+                    open.remove(index)
+                    return index
+                }
+            }
+
+            /**
+             * Waits for the checksums and checks [data] against the one of chunk [index].
+             * @return whether the chunk is valid or `null` if it cannot be verified because the checksums are unavailable
+             */
+            fun verify(index: Int, data: ByteArray): Boolean? {
+                val expected = synchronized(lock) {
+                    while (!checksumsReceived) {
+                        try {
+                            lock.wait()
+                        } catch (exc: InterruptedException) {
+                            return null
+                        }
+                    }
+                    checksums?.get(index) ?: return null
+                }
+                return checksum(data, data.size) == expected
+            }
+
+            fun fetch(holder: FileAvailability?) {
+                while (true) {
+                    val index = claim(holder) ?: return
+                    val offset = index.toLong() * chunkSize
+                    val length = minOf(chunkSize.toLong(), total - offset).toInt()
+                    val data = try {
+                        (holder?.copy ?: source).openStream(offset, length.toLong()).use { it.readNBytes(length) }
+                    } catch (exc: IOException) {
+                        if (holder == null) {
+                            synchronized(lock) { failure = exc }
+                            return
+                        }
+                        synchronized(lock) { originOnly.add(index) }
+                        return  // stop using this peer
+                    }
+                    if (data.size != length) {
+                        if (holder == null) {
+                            synchronized(lock) { failure = IOException("Chunk $index of ${source.getName()} is incomplete") }
+                            return
+                        }
+                        synchronized(lock) { originOnly.add(index) }
+                        continue
+                    }
+                    if (holder != null) {  // the origin is trusted, its chunks need no checksums
+                        val valid = verify(index, data)
+                        if (valid != true) {
+                            synchronized(lock) { originOnly.add(index) }
+                            if (valid == null) return  // nothing from this peer can be verified
+                            continue
+                        }
+                    }
+                    synchronized(out) {
+                        out.seek(offset)
+                        out.write(data)
+                    }
+                    val chunks = synchronized(lock) {
+                        done.set(index)
+                        received = minOf(done.nextClearBit(0).toLong() * chunkSize, total)
+                        lock.notifyAll()
+                        done.clone() as BitSet
+                    }
+                    synchronized(progressLock) {
+                        chunksSinceAdvertised++
+                        if (swarm?.updatePartial(source, target, chunks, chunksSinceAdvertised) == true) chunksSinceAdvertised = 0
+                        onProgress.forEach { it(received, total) }
+                    }
+                }
+            }
+
+            val workers = (listOf<FileAvailability?>(null) + holders).map { holder ->
+                Thread(Runnable { fetch(holder) }, "Download ${source.getName()} from ${holder?.copy?.getOrigin() ?: source.getOrigin()}")
+            }
+            workers.forEach { it.start() }
+            workers.forEach { it.join() }
+            fetch(null)  // chunks given up by other peers after the origin worker finished
+        }
+        swarm?.updatePartial(source, target, null, 0)
+        failure?.let { throw it }
+        if (done.cardinality() != chunkCount) throw IOException("Download of ${source.getName()} incomplete")
+    }
+
+    /**
+     * Blocks until at least one byte after [position] has been received or the download has ended.
+     *
+     * @return number of bytes available after [position], 0 or less if the end of the file has been reached
+     */
+    @Throws(IOException::class)
+    private fun awaitBytes(position: Long): Long {
+        synchronized(lock) {
+            while (received <= position && !complete && error == null) {
+                try {
+                    lock.wait()
+                } catch (exc: InterruptedException) {
+                    throw InterruptedIOException("Interrupted while waiting for ${source.getName()}")
+                }
+            }
+            error?.let { throw IOException("Download of ${source.getName()} failed", it) }
+            return received - position
+        }
+    }
+
+    /**
+     * Opens a new stream that starts at the beginning of the file.
+     * Reading blocks on bytes that have not yet been received.
+     */
+    @Throws(IOException::class)
+    fun openStream(): InputStream {
+        return ProgressiveInputStream()
+    }
+
+
+    private inner class ProgressiveInputStream : InputStream()
+    {
+        private val file = RandomAccessFile(target, "r")
+        private var position: Long = 0
+
+        override fun read(): Int {
+            val single = ByteArray(1)
+            val n = read(single, 0, 1)
+            return if (n < 0) -1 else single[0].toInt() and 0xFF
+        }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int {
+            if (len == 0) return 0
+            val available = awaitBytes(position)
+            if (available <= 0) return -1
+            file.seek(position)
+            val n = file.read(b, off, minOf(len.toLong(), available).toInt())
+            if (n > 0) position += n
+            return n
+        }
+
+        override fun skip(n: Long): Long {
+            if (n <= 0) return 0
+            val available = awaitBytes(position)
+            if (available <= 0) return 0
+            val skipped = minOf(n, available)
+            position += skipped
+            return skipped
+        }
+
+        override fun available(): Int {
+            return (received - position).coerceIn(0, Int.MAX_VALUE.toLong()).toInt()
+        }
+
+        override fun close() {
+            file.close()
+        }
+    }
+}
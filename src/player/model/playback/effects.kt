@@ -0,0 +1,157 @@
+package player.model.playback
+
+import audio.Player
+import cloud.Peer
+import javafx.collections.ListChangeListener
+import player.model.data.ArmedEffect
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.logging.Logger
+
+/**
+ * Keeps the [ArmedEffect]s that target local speakers ready to play and fires them on request.
+ *
+ * For each armed effect, the file is decoded completely into a few players which are activated on the target device
+ * and wait at the beginning of the file. A fire message, see [encodeFire], starts an idle player directly on the thread receiving it,
+ * without creating a task or a job. Players rewind once they reach the end and become idle again.
+ * Effects that are no longer armed are released.
+ */
+class EffectBank(val engine: PlaybackEngine)
+{
+    companion object {
+        /** Message channel for fire messages, see [cloud.Cloud.sendMessage] */
+        const val CHANNEL = "effect"
+        private const val BUFFER_TIME = 0.05  // seconds, effects are decoded in advance so the line needs little buffering
+
+        /**
+         * Encodes the message that fires the effect with the given ID.
+         *
+         * @param gain gain in dB, the master gain is added
+         * @param balance balance from -1 (left) to 1 (right)
+         */
+        fun encodeFire(effectId: String, gain: Double, balance: Double): ByteArray {
+            val buffer = ByteArrayOutputStream(effectId.length + 10)
+            DataOutputStream(buffer).use { out ->
+                out.writeUTF(effectId)
+                out.writeFloat(gain.toFloat())
+                out.writeFloat(balance.toFloat())
+            }
+            return buffer.toByteArray()
+        }
+    }
+
+    private class Voice(val player: Player)
+    {
+        val idle = AtomicBoolean(false)
+    }
+
+    private class Armed(val effect: ArmedEffect, val voices: List<Voice>)
+
+    private val thread = Executors.newSingleThreadExecutor { r -> Thread(r, "Effect Loader").also { t -> t.isDaemon = true } }
+    private val rewinder = Executors.newSingleThreadExecutor { r -> Thread(r, "Effect Rewinder").also { t -> t.isDaemon = true } }  // not blocked by arming
+    private val effects = engine.cloud.getAll(ArmedEffect::class.java, this) { r -> thread.submit(r) }
+    private val armed = ConcurrentHashMap<String, Armed>()  // modified on the loader thread, read when firing
+    private val logger = Logger.getLogger("effects")
+
+
+    init {
+        engine.cloud.onMessage(CHANNEL) { peer, payload -> fire(peer, payload) }
+        thread.submit {  // effects is updated on the loader thread
+            effects.addListener(ListChangeListener { update() })
+            update()
+        }
+    }
+
+    /**
+     * Starts an idle voice of the effect named in [payload]. Runs on the thread receiving the message.
+     */
+    private fun fire(peer: Peer, payload: ByteArray) {
+        val input = DataInputStream(ByteArrayInputStream(payload))
+        val id = input.readUTF()
+        val gain = input.readFloat().toDouble()
+        val balance = input.readFloat().toDouble()
+        val effect = armed[id]
+        if (effect == null) {
+            logger.fine("$peer fired effect $id which is not armed")
+            return
+        }
+        val voice = effect.voices.firstOrNull { v -> v.idle.compareAndSet(true, false) }
+        if (voice == null) {
+            logger.fine("All voices of effect $id are playing, ignoring fire message from $peer")
+            return
+        }
+        voice.player.gain = gain + engine.masterGain.value
+        voice.player.balance = balance
+        voice.player.start()
+    }
+
+    /**
+     * Arms the effects targeting local speakers and releases all others. Runs on the loader thread.
+     */
+    private fun update() {
+        val wanted = effects.filter { effect -> effect.target in engine.speakerMap.keys }.associateBy { effect -> effect.id }
+        for ((id, effect) in ArrayList(armed.entries)) {
+            if (wanted[id] != effect.effect) {
+                armed.remove(id)
+                release(effect)
+            }
+        }
+        for ((id, effect) in wanted) {
+            if (!armed.containsKey(id)) arm(effect)?.let { a -> armed[id] = a }
+        }
+    }
+
+    private fun arm(effect: ArmedEffect): Armed? {
+        val device = engine.speakerMap[effect.target] ?: return null
+        val voices = (1..effect.voices).mapNotNull { _ ->
+            val player = engine.audioEngine.newPlayer(engine.files.get(effect.file))
+            try {
+                player.prepare()
+                player.waitForDurationProperty()  // keep the whole effect in memory
+                player.activate(device, BUFFER_TIME)
+            } catch (exc: Exception) {
+                logger.warning("Failed to arm effect ${effect.id} with ${effect.file}: $exc")
+                player.dispose()
+                return@mapNotNull null
+            }
+            val voice = Voice(player)
+            player.addEndOfMediaListener { rewinder.submit { rewind(voice) } }
+            voice.idle.set(true)
+            voice
+        }
+        if (voices.isEmpty()) return null
+        logger.fine("Armed effect ${effect.id} with ${voices.size} voice(s) on ${effect.target}")
+        return Armed(effect, voices)
+    }
+
+    private fun rewind(voice: Voice) {
+        try {
+            voice.player.pause()
+            voice.player.setPositionAsync(0.0) { voice.idle.set(true) }
+        } catch (exc: IllegalStateException) {
+            // released in the meantime
+        }
+    }
+
+    private fun release(effect: Armed) {
+        effect.voices.forEach { voice ->
+            voice.idle.set(false)
+            voice.player.dispose()
+        }
+    }
+
+    fun dispose() {
+        engine.cloud.onMessage(CHANNEL, null)
+        thread.submit {
+            ArrayList(armed.values).forEach { effect -> release(effect) }
+            armed.clear()
+        }
+        thread.shutdown()
+        rewinder.shutdown()
+    }
+}
@@ -0,0 +1,131 @@
+package player.model.playback
+
+import audio.Player
+import cloud.CloudFile
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicLong
+import java.util.logging.Logger
+
+/**
+ * Decodes files that are likely to be played next so that jobs find their audio data ready.
+ *
+ * Each call to [plan] replaces the list of upcoming files. Files are decoded one at a time in the planned order,
+ * so the next track is ready first. A new plan interrupts the decoding in progress and releases files that are no longer planned.
+ * Preloaded players hold on to the decoded data until they are released; jobs that create players for the same file share it.
+ *
+ * @param maxFiles maximum number of files to keep decoded
+ * @param memoryBudget maximum number of bytes of decoded audio kept by this preloader
+ */
+class Preloader(val engine: PlaybackEngine, val maxFiles: Int, val memoryBudget: Long)
+{
+    data class Stats(val files: Int, val bytes: Long, val memoryBudget: Long, val hits: Long, val misses: Long)
+    {
+        override fun toString(): String {
+            return "Preloaded $files files, ${bytes / 1_000_000} / ${memoryBudget / 1_000_000} MB, $hits hits, $misses misses"
+        }
+    }
+
+    private class Preload(val player: Player, val bytes: Long)
+
+    private val thread = Executors.newSingleThreadExecutor { r -> Thread(r, "Preloader").also { t -> t.isDaemon = true } }
+    private val preloaded = LinkedHashMap<CloudFile, Preload>()  // guarded by itself
+    private var current: Future<*>? = null  // accessed on the caller's thread
+    private val logger = Logger.getLogger("preloader")
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+
+
+    /**
+     * Replaces the upcoming files, most urgent first. Preparation of files that are no longer planned is cancelled.
+     */
+    fun plan(files: List<CloudFile>) {
+        val planned = files.distinct().take(maxFiles)
+        current?.cancel(true)
+        current = thread.submit { load(planned) }
+    }
+
+    /**
+     * Records whether a job found [file] preloaded.
+     */
+    fun claim(file: CloudFile) {
+        if (synchronized(preloaded) { file in preloaded }) hits.incrementAndGet() else misses.incrementAndGet()
+    }
+
+    fun stats(): Stats {
+        synchronized(preloaded) {
+            return Stats(preloaded.size, preloaded.values.map { p -> p.bytes }.sum(), memoryBudget, hits.get(), misses.get())
+        }
+    }
+
+    fun dispose() {
+        current?.cancel(true)
+        thread.submit { synchronized(preloaded) { ArrayList(preloaded.keys) }.forEach { file -> release(file) } }
+        thread.shutdown()
+    }
+
+    private fun load(files: List<CloudFile>) {
+        val obsolete = synchronized(preloaded) { preloaded.keys.filter { file -> file !in files } }
+        obsolete.forEach { file -> release(file) }
+
+        var used = synchronized(preloaded) { preloaded.values.map { p -> p.bytes }.sum() }
+        for (file in files) {
+            if (Thread.currentThread().isInterrupted) return
+            if (synchronized(preloaded) { file in preloaded }) continue
+            val player = engine.audioEngine.newPlayer(engine.files.get(file))
+            val bytes = try {
+                player.loadMediaFormat()
+                estimateBytes(player)
+            } catch (exc: Exception) {
+                logger.fine("Failed to preload $file: $exc")
+                player.dispose()
+                continue
+            }
+            if (bytes == null) {
+                logger.fine("Not preloading $file, its decoded size is unknown")
+                player.dispose()
+                continue
+            }
+            if (used + bytes > memoryBudget) {  // checked before decoding so the budget is never exceeded
+                player.dispose()
+                return
+            }
+            try {
+                player.prepare()
+                player.waitForDurationProperty()  // decode completely before starting on the next file
+            } catch (exc: InterruptedException) {
+                admit(file, player, bytes)  // fits, keeps decoding in the background and is released by the next plan if no longer planned
+                return
+            } catch (exc: Exception) {
+                logger.fine("Failed to preload $file: $exc")
+                player.dispose()
+                continue
+            }
+            admit(file, player, bytes)
+            used += bytes
+        }
+    }
+
+    private fun admit(file: CloudFile, player: Player, bytes: Long) {
+        synchronized(preloaded) { preloaded[file] = Preload(player, bytes) }
+        logger.fine("Preloaded $file (${bytes / 1000} kB)")
+    }
+
+    private fun release(file: CloudFile) {
+        val preload = synchronized(preloaded) { preloaded.remove(file) } ?: return
+        preload.player.dispose()
+    }
+
+    /**
+     * Estimates the size of the decoded audio from the file headers before anything is decoded.
+     * Decoders output 16 bit PCM at the sample rate of the file.
+     * @return the number of bytes or `null` if the duration is not known
+     */
+    private fun estimateBytes(player: Player): Long? {
+        val format = player.encodedFormat ?: return null
+        val duration = player.duration
+        if (duration <= 0) return null
+        val frameSize = if (format.encodingName == "PCM_SIGNED") format.frameSize else format.channels * 2
+        return (duration * format.sampleRate * frameSize).toLong()
+    }
+}
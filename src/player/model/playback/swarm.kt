@@ -0,0 +1,70 @@
+package player.model.playback
+
+import cloud.Cloud
+import cloud.CloudFile
+import javafx.collections.ListChangeListener
+import player.model.data.FileAvailability
+import java.io.File
+import java.util.*
+
+/**
+ * Advertises the files held by the local [cache] to other peers and keeps track of the copies they advertise.
+ * This allows downloads to fetch chunks of a file from several peers at once instead of only the origin.
+ *
+ * All cloud interaction happens on [thread].
+ */
+class Swarm(val cloud: Cloud, val cache: RemoteFileCache, private val thread: (Runnable) -> Unit)
+{
+    companion object {
+        const val CHUNK_SIZE = 1 shl 20
+        /** Maximum number of peers to download from at the same time, including the origin */
+        const val MAX_SOURCES = 4
+        /** Partial downloads are re-advertised after this many new chunks */
+        private const val ADVERTISE_INTERVAL = 8
+    }
+
+    private val availability = cloud.getAll(FileAvailability::class.java, this, thread)
+    @Volatile private var holders: Map<String, List<FileAvailability>> = emptyMap()
+    private val partial = HashMap<String, FileAvailability>()  // accessed only on thread
+
+
+    init {
+        availability.addListener(ListChangeListener {
+            holders = availability.filter { a -> !a.copy.originatesHere() }.groupBy { a -> a.key }
+        })
+        cache.onChange.add(Runnable { thread(Runnable { advertise() }) })
+        thread(Runnable { advertise() })
+    }
+
+
+    /**
+     * Returns the copies of [file] advertised by other peers, excluding its origin.
+     */
+    fun sources(file: CloudFile): List<FileAvailability> {
+        return holders[RemoteFileCache.key(file)]?.filter { a -> a.copy.getOrigin() != file.getOrigin() } ?: emptyList()
+    }
+
+    /**
+     * Advertises the chunks of an ongoing download or stops advertising it if [chunks] is null.
+     * Ongoing downloads are only advertised after a few new chunks.
+     *
+     * @param chunksSinceUpdate number of chunks received since the last call that returned `true`
+     * @return whether the chunks are advertised
+     */
+    fun updatePartial(file: CloudFile, target: File, chunks: BitSet?, chunksSinceUpdate: Int): Boolean {
+        if (chunks != null && chunksSinceUpdate < ADVERTISE_INTERVAL) return false
+        val key = RemoteFileCache.key(file)
+        val copy = chunks?.let { FileAvailability(key, CloudFile(target), file.length(), CHUNK_SIZE, chunks.clone() as BitSet) }
+        thread(Runnable {
+            if (copy != null) partial[key] = copy else partial.remove(key)
+            advertise()
+        })
+        return true
+    }
+
+    private fun advertise() {
+        val complete = cache.entries().map { (key, file) -> FileAvailability(key, CloudFile(file), file.length(), CHUNK_SIZE, null) }
+        val ongoing = partial.values.filter { p -> complete.none { c -> c.key == p.key } }
+        cloud.push(FileAvailability::class.java, complete + ongoing, this, true)
+    }
+}
@@ -0,0 +1,244 @@
+package player.model
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * In-memory inverted index over the names of library entries.
+ *
+ * The searchable text of an entry consists of its title, artist and album and the names of the two enclosing directories.
+ * Texts are normalized to lower case words separated by single spaces and split into trigrams.
+ * Each trigram maps to the ascending IDs of the entries containing it.
+ * Additionally, the first letter of every word is indexed so that single letters match word beginnings.
+ *
+ * Query words of three or more letters match anywhere in a word, shorter ones only at the beginning of a word.
+ * Fuzzy queries match entries sharing most trigrams with the query, tolerating typos.
+ *
+ * Removed entries are marked and their IDs are not reused; the index is rebuilt once more than half of the IDs are unused.
+ * All methods are thread-safe.
+ */
+class SearchIndex
+{
+    companion object {
+        private const val FUZZY_THRESHOLD = 0.6  // fraction of query trigrams an entry must contain
+        private const val CHECK_INTERVAL = 1024  // candidates between checks for cancellation
+
+        /**
+         * Lower-cases [text] and replaces everything but letters and digits by single spaces.
+         */
+        fun normalize(text: String): String {
+            val result = StringBuilder(text.length)
+            for (c in text) {
+                if (Character.isLetterOrDigit(c)) result.append(Character.toLowerCase(c))
+                else if (result.isNotEmpty() && result[result.length - 1] != ' ') result.append(' ')
+            }
+            if (result.isNotEmpty() && result[result.length - 1] == ' ') result.setLength(result.length - 1)
+            return result.toString()
+        }
+
+        private fun gram(c1: Char, c2: Char, c3: Char): Long = (3L shl 48) or (c1.toLong() shl 32) or (c2.toLong() shl 16) or c3.toLong()
+        private fun initial(c: Char): Long = (1L shl 48) or c.toLong()
+
+        /**
+         * Keys of all trigrams and word initials of [text], which must start with a space.
+         */
+        private fun grams(text: String): Set<Long> {
+            val result = HashSet<Long>()
+            for (i in 0 until text.length - 2) result.add(gram(text[i], text[i + 1], text[i + 2]))
+            for (i in 0 until text.length - 1) if (text[i] == ' ') result.add(initial(text[i + 1]))
+            return result
+        }
+
+        /**
+         * Keys an entry must contain to match [word] exactly.
+         */
+        private fun queryGrams(word: String): List<Long> {
+            return when (word.length) {
+                1 -> listOf(initial(word[0]))
+                2 -> listOf(gram(' ', word[0], word[1]))
+                else -> (0 until word.length - 2).map { i -> gram(word[i], word[i + 1], word[i + 2]) }
+            }
+        }
+    }
+
+    /** Entry of a search result, ordered by descending [score] */
+    class Hit(val path: String, val score: Double, private val nameLength: Int) : Comparable<Hit>
+    {
+        override fun compareTo(other: Hit): Int {
+            if (score != other.score) return other.score.compareTo(score)
+            if (nameLength != other.nameLength) return nameLength.compareTo(other.nameLength)
+            return path.compareTo(other.path)
+        }
+    }
+
+    private class IntList
+    {
+        var values = IntArray(4)
+        var size = 0
+
+        fun add(value: Int) {
+            if (size == values.size) values = values.copyOf(size * 2)
+            values[size++] = value
+        }
+    }
+
+    private val lock = ReentrantReadWriteLock()
+    // Guarded by lock
+    private val paths = ArrayList<String?>()  // ID -> path, null if removed
+    private val texts = ArrayList<String?>()  // ID -> normalized text with leading space
+    private val nameLengths = IntList()  // ID -> length of the title part of the text, including the leading space
+    private val ids = HashMap<String, Int>()
+    private val postings = HashMap<Long, IntList>()
+    private var removed = 0
+
+
+    val size: Int
+        get() = lock.read { ids.size }
+
+    fun put(entry: LibraryEntry) {
+        val file = File(entry.path)
+        val name = " " + normalize(entry.title ?: file.name)
+        val parents = normalize(listOfNotNull(entry.tags?.artist, entry.tags?.album, file.parentFile?.name, file.parentFile?.parentFile?.name).joinToString(" "))
+        val text = if (parents.isEmpty()) name else "$name $parents"
+        lock.write {
+            val existing = ids[entry.path]
+            if (existing != null) {
+                if (texts[existing] == text) return
+                markRemoved(existing)
+            }
+            add(entry.path, text, name.length)
+        }
+    }
+
+    fun remove(path: String) {
+        lock.write {
+            val id = ids.remove(path) ?: return
+            markRemoved(id)
+            if (removed > 1024 && removed > ids.size) rebuild()
+        }
+    }
+
+    /**
+     * Returns all entries matching every word of [query], best matches first.
+     * If [fuzzy] is set, entries that only approximately match the query are returned instead, excluding exact matches.
+     * Returns an empty list as soon as [cancelled] is set.
+     *
+     * @param limit maximum number of hits to return
+     */
+    fun find(query: String, fuzzy: Boolean, limit: Int, cancelled: AtomicBoolean): List<Hit> {
+        val words = normalize(query).split(' ').filter { w -> w.isNotEmpty() }
+        if (words.isEmpty()) return emptyList()
+        val hits = lock.read {
+            if (fuzzy) findFuzzy(words, cancelled) else findExact(words, cancelled)
+        } ?: return emptyList()
+        hits.sort()
+        return if (hits.size > limit) hits.subList(0, limit) else hits
+    }
+
+    private fun findExact(words: List<String>, cancelled: AtomicBoolean): MutableList<Hit>? {
+        val lists = words.flatMap { word -> queryGrams(word) }.distinct().map { key -> postings[key] ?: return ArrayList() }.sortedBy { list -> list.size }
+        val hits = ArrayList<Hit>()
+        var candidates = lists[0].values.copyOf(lists[0].size)
+        for (list in lists.subList(1, lists.size)) {
+            candidates = intersect(candidates, list)
+            if (cancelled.get()) return null
+        }
+        for ((i, id) in candidates.withIndex()) {
+            if (i % CHECK_INTERVAL == 0 && cancelled.get()) return null
+            val text = texts[id] ?: continue
+            val score = score(text, nameLengths.values[id], words) ?: continue
+            hits.add(Hit(paths[id]!!, score, nameLengths.values[id]))
+        }
+        return hits
+    }
+
+    private fun findFuzzy(words: List<String>, cancelled: AtomicBoolean): MutableList<Hit>? {
+        val text = " " + words.joinToString(" ")
+        if (text.length < 5) return ArrayList()  // too short to tolerate errors
+        val grams = grams(text)
+        val counts = IntArray(paths.size)
+        for (key in grams) {
+            val list = postings[key] ?: continue
+            for (i in 0 until list.size) counts[list.values[i]]++
+            if (cancelled.get()) return null
+        }
+        val required = Math.ceil(grams.size * FUZZY_THRESHOLD).toInt()
+        val hits = ArrayList<Hit>()
+        for (id in counts.indices) {
+            if (id % CHECK_INTERVAL == 0 && cancelled.get()) return null
+            if (counts[id] < required) continue
+            val entryText = texts[id] ?: continue
+            if (score(entryText, nameLengths.values[id], words) != null) continue  // exact match
+            hits.add(Hit(paths[id]!!, counts[id].toDouble() / grams.size, nameLengths.values[id]))
+        }
+        return hits
+    }
+
+    /**
+     * Scores how well [text] matches [words]: words matching the title count more than words matching a directory name,
+     * words matching the beginning of a word count more than words matching inside.
+     *
+     * @return the score, greater than or equal to 1, or `null` if a word does not match
+     */
+    private fun score(text: String, nameLength: Int, words: List<String>): Double? {
+        var score = 0.0
+        for (word in words) {
+            var index = text.indexOf(" $word")
+            val atStart = index >= 0
+            if (atStart) index++ else if (word.length >= 3) index = text.indexOf(word)
+            if (index < 0) return null
+            score += (if (index < nameLength) 4 else 1) * (if (atStart) 2 else 1)
+        }
+        return score / words.size
+    }
+
+    private fun intersect(sorted: IntArray, list: IntList): IntArray {
+        val result = IntArray(minOf(sorted.size, list.size))
+        var count = 0
+        var i = 0
+        var j = 0
+        while (i < sorted.size && j < list.size) {
+            val a = sorted[i]
+            val b = list.values[j]
+            when {
+                a < b -> i++
+                a > b -> j++
+                else -> { result[count++] = a; i++; j++ }
+            }
+        }
+        return result.copyOf(count)
+    }
+
+    private fun add(path: String, text: String, nameLength: Int) {
+        val id = paths.size
+        paths.add(path)
+        texts.add(text)
+        nameLengths.add(nameLength)
+        ids[path] = id
+        for (key in grams(text)) {
+            postings.getOrPut(key) { IntList() }.add(id)  // IDs are increasing, keeping the lists sorted
+        }
+    }
+
+    private fun markRemoved(id: Int) {
+        paths[id] = null
+        texts[id] = null
+        removed++
+    }
+
+    private fun rebuild() {
+        val livePaths = paths.filterNotNull()
+        val liveTexts = texts.filterNotNull()
+        val liveNameLengths = (0 until paths.size).filter { id -> paths[id] != null }.map { id -> nameLengths.values[id] }
+        paths.clear()
+        texts.clear()
+        nameLengths.size = 0
+        ids.clear()
+        postings.clear()
+        removed = 0
+        for (i in livePaths.indices) add(livePaths[i], liveTexts[i], liveNameLengths[i])
+    }
+}
@@ -5,6 +5,7 @@ import javafx.beans.Observable
 import javafx.beans.property.*
 import javafx.beans.value.ChangeListener
 import javafx.beans.value.ObservableValue
+import javafx.collections.ModifiableObservableListBase
 import java.util.concurrent.CopyOnWriteArrayList
 import java.util.function.Consumer
 import java.util.function.Supplier
@@ -189,4 +190,52 @@ class FireLater<T>(val value: ObservableValue<T>, observerThread: (r: Runnable)
         return value.value
     }
 
-}
\ No newline at end of file
+}
+
+
+/**
+ * Observable list that takes on new content with [update] as a single change covering only the range that differs.
+ * List views showing it only update the affected rows instead of rebuilding all of them.
+ */
+class IncrementalList<T>(initial: Collection<T> = emptyList()) : ModifiableObservableListBase<T>()
+{
+    private val elements = ArrayList<T>(initial)
+
+    override fun get(index: Int): T = elements[index]
+
+    override val size: Int
+        get() = elements.size
+
+    override fun doAdd(index: Int, element: T) = elements.add(index, element)
+
+    override fun doSet(index: Int, element: T): T = elements.set(index, element)
+
+    override fun doRemove(index: Int): T = elements.removeAt(index)
+
+    /**
+     * Makes this list equal to [content]. Elements before and after the differing range are kept.
+     */
+    fun update(content: List<T>) {
+        val common = minOf(elements.size, content.size)
+        var start = 0
+        while (start < common && elements[start] == content[start]) start++
+        var end = 0
+        while (end < common - start && elements[elements.size - 1 - end] == content[content.size - 1 - end]) end++
+        val removedRange = elements.subList(start, elements.size - end)
+        val added = content.subList(start, content.size - end)
+        if (removedRange.isEmpty() && added.isEmpty()) return
+        beginChange()
+        try {
+            val removed = ArrayList(removedRange)
+            removedRange.clear()
+            elements.addAll(start, added)
+            when {
+                removed.isEmpty() -> nextAdd(start, start + added.size)
+                added.isEmpty() -> nextRemove(start, removed)
+                else -> nextReplace(start, start + added.size, removed)
+            }
+        } finally {
+            endChange()
+        }
+    }
+}